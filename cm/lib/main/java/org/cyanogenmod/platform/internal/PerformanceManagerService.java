@@ -33,7 +33,9 @@ import android.os.Message;
 import android.os.PowerManagerInternal;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.ArrayMap;
+import android.util.LruCache;
 import android.util.Slog;
 
 import com.android.server.ServiceThread;
@@ -41,8 +43,8 @@ import com.android.server.ServiceThread;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
@@ -73,7 +75,7 @@ public class PerformanceManagerService extends CMSystemService {
 
     private final Context mContext;
 
-    private final LinkedHashMap<Pattern, Integer>    mAppProfiles = new LinkedHashMap<>();
+    private final AppProfileMatcher mAppProfiles = new AppProfileMatcher();
     private final ArrayMap<Integer, PerformanceProfile> mProfiles = new ArrayMap<>();
 
     private int mNumProfiles = 0;
@@ -114,9 +116,13 @@ public class PerformanceManagerService extends CMSystemService {
     // Dumpable circular buffer for boost logging
     private final BoostLog mBoostLog = new BoostLog();
 
+    // Merges overlapping cpu boost requests
+    private final BoostScheduler mBoostScheduler = new BoostScheduler();
+
     // Events on the handler
     private static final int MSG_CPU_BOOST    = 1;
     private static final int MSG_SET_PROFILE  = 2;
+    private static final int MSG_ACTIVITY_RESUMED = 3;
 
     public PerformanceManagerService(Context context) {
         super(context);
@@ -129,7 +135,7 @@ public class PerformanceManagerService extends CMSystemService {
             for (int i = 0; i < activities.length; i++) {
                 String[] info = activities[i].split(",");
                 if (info.length == 2) {
-                    mAppProfiles.put(Pattern.compile(info[0]), Integer.valueOf(info[1]));
+                    mAppProfiles.add(info[0], Integer.valueOf(info[1]));
                     if (DEBUG) {
                         Slog.d(TAG, String.format(Locale.US,"App profile #%d: %s => %s",
                                 i, info[0], info[1]));
@@ -205,6 +211,7 @@ public class PerformanceManagerService extends CMSystemService {
 
     private void populateProfilesLocked() {
         mProfiles.clear();
+        mAppProfiles.clearCache();
 
         Resources res = mContext.getResources();
         String[] profileNames = res.getStringArray(R.array.perf_profile_entries);
@@ -311,6 +318,8 @@ public class PerformanceManagerService extends CMSystemService {
 
         mActiveProfile = profile;
 
+        // Only the latest profile matters, drop the one still waiting to be sent
+        mHandler.removeMessages(MSG_SET_PROFILE);
         mHandler.obtainMessage(MSG_SET_PROFILE, profile,
                 (fromUser ? 1 : 0)).sendToTarget();
 
@@ -322,12 +331,7 @@ public class PerformanceManagerService extends CMSystemService {
     private int getProfileForActivity(String componentName) {
         int profile = -1;
         if (componentName != null) {
-            for (Map.Entry<Pattern, Integer> entry : mAppProfiles.entrySet()) {
-                if (entry.getKey().matcher(componentName).matches()) {
-                    profile = entry.getValue();
-                    break;
-                }
-            }
+            profile = mAppProfiles.match(componentName);
         }
         if (DEBUG) {
             Slog.d(TAG, "getProfileForActivity: activity=" + componentName + " profile=" + profile);
@@ -351,7 +355,9 @@ public class PerformanceManagerService extends CMSystemService {
         }
 
         if (duration > 0 && duration <= MAX_CPU_BOOST_TIME) {
-            mHandler.obtainMessage(MSG_CPU_BOOST, duration, 0).sendToTarget();
+            // Ahead of profile changes, a boost is only useful right away
+            mHandler.sendMessageAtFrontOfQueue(
+                    mHandler.obtainMessage(MSG_CPU_BOOST, duration, 0));
         } else {
             Slog.e(TAG, "Invalid boost duration: " + duration);
         }
@@ -456,8 +462,10 @@ public class PerformanceManagerService extends CMSystemService {
                     if (hasAppProfiles()) {
                         pw.println();
                         pw.println(" App trigger count: " + mAppProfiles.size());
+                        mAppProfiles.dump(pw);
                     }
                     pw.println();
+                    mBoostScheduler.dump(pw);
                     mBoostLog.dump(pw);
                 }
             }
@@ -473,18 +481,197 @@ public class PerformanceManagerService extends CMSystemService {
 
         @Override
         public void activityResumed(Intent intent) {
-            String activityName = null;
-            if (intent != null) {
-                final ComponentName cn = intent.getComponent();
-                if (cn != null) {
-                    activityName = cn.flattenToString();
+            final ComponentName cn = intent != null ? intent.getComponent() : null;
+            // Only the latest resume matters, and the launch path must not wait for it
+            mHandler.removeMessages(MSG_ACTIVITY_RESUMED);
+            mHandler.obtainMessage(MSG_ACTIVITY_RESUMED, cn).sendToTarget();
+        }
+    }
+
+    /**
+     * Matches flattened component names against the app profile patterns, in the order they
+     * were added. Patterns starting with a literal package name and '/' are indexed by that
+     * package, so a lookup only runs the patterns that can possibly match, and the results
+     * are memoized per component.
+     */
+    private static final class AppProfileMatcher {
+        private static final int CACHE_SIZE = 64;
+
+        // Characters ending the literal prefix of a pattern
+        private static final String META_CHARS = ".[]{}()*+?^$|";
+        // Characters making the preceding literal optional or repeated
+        private static final String QUANTIFIERS = "?*+{";
+
+        static final class Entry {
+            final int order;
+            final Pattern pattern;
+            final String prefix;
+            final int profile;
+
+            Entry(int order_, Pattern pattern_, String prefix_, int profile_) {
+                order = order_;
+                pattern = pattern_;
+                prefix = prefix_;
+                profile = profile_;
+            }
+        }
+
+        private final ArrayMap<String, ArrayList<Entry>> mByPackage = new ArrayMap<>();
+        // Entries without a literal package name; their prefix, if any, still filters
+        private final ArrayList<Entry> mOthers = new ArrayList<>();
+        private final LruCache<String, Integer> mCache = new LruCache<>(CACHE_SIZE);
+        private int mSize;
+
+        void add(String regex, int profile) {
+            mCache.evictAll();
+            final String prefix = getLiteralPrefix(regex);
+            final Entry entry = new Entry(mSize++, Pattern.compile(regex), prefix, profile);
+            final int slash = prefix.indexOf('/');
+            if (slash < 0) {
+                mOthers.add(entry);
+                return;
+            }
+            final String pkg = prefix.substring(0, slash);
+            ArrayList<Entry> entries = mByPackage.get(pkg);
+            if (entries == null) {
+                entries = new ArrayList<>(1);
+                mByPackage.put(pkg, entries);
+            }
+            entries.add(entry);
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        /**
+         * @return the profile of the first matching pattern, or -1 if none matches
+         */
+        int match(String componentName) {
+            Integer profile = mCache.get(componentName);
+            if (profile == null) {
+                profile = matchUncached(componentName);
+                mCache.put(componentName, profile);
+            }
+            return profile;
+        }
+
+        void clearCache() {
+            mCache.evictAll();
+        }
+
+        void dump(PrintWriter pw) {
+            pw.println(" App trigger packages: " + mByPackage.size()
+                    + ", unindexed triggers: " + mOthers.size());
+            pw.println(" App trigger cache: " + mCache.size() + " entries, "
+                    + mCache.hitCount() + " hits, " + mCache.missCount() + " misses");
+        }
+
+        private int matchUncached(String componentName) {
+            final int slash = componentName.indexOf('/');
+            final ArrayList<Entry> candidates =
+                    slash < 0 ? null : mByPackage.get(componentName.substring(0, slash));
+            final int candidateCount = candidates != null ? candidates.size() : 0;
+            final int otherCount = mOthers.size();
+
+            // Both lists are in the order the patterns were added, merge them so the first
+            // matching pattern still wins
+            int i = 0;
+            int j = 0;
+            while (i < candidateCount || j < otherCount) {
+                final Entry entry;
+                if (j >= otherCount
+                        || (i < candidateCount && candidates.get(i).order < mOthers.get(j).order)) {
+                    entry = candidates.get(i++);
+                } else {
+                    entry = mOthers.get(j++);
+                }
+                if (componentName.startsWith(entry.prefix)
+                        && entry.pattern.matcher(componentName).matches()) {
+                    return entry.profile;
                 }
             }
+            return -1;
+        }
 
-            synchronized (mLock) {
-                mCurrentActivityName = activityName;
-                applyAppProfileLocked();
+        /**
+         * Returns the literal text every match of the pattern starts with. Patterns using
+         * alternation are not analyzed and get an empty prefix.
+         */
+        private static String getLiteralPrefix(String regex) {
+            final int length = regex.length();
+            for (int i = 0; i < length; i++) {
+                final char c = regex.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == '|') {
+                    return "";
+                }
+            }
+
+            final StringBuilder prefix = new StringBuilder();
+            int i = 0;
+            while (i < length) {
+                final char c = regex.charAt(i);
+                final char literal;
+                if (c == '\\') {
+                    // Escaped letters and digits are classes, references or quoting
+                    if (i + 1 >= length || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                        break;
+                    }
+                    literal = regex.charAt(i + 1);
+                    i += 2;
+                } else if (META_CHARS.indexOf(c) >= 0) {
+                    break;
+                } else {
+                    literal = c;
+                    i++;
+                }
+                if (i < length && QUANTIFIERS.indexOf(regex.charAt(i)) >= 0) {
+                    break;
+                }
+                prefix.append(literal);
+            }
+            return prefix.toString();
+        }
+    }
+
+    /**
+     * Tracks the deadline of the cpu boost in effect, so requests it already covers are
+     * dropped and longer ones only extend it, instead of each one reaching the power HAL.
+     */
+    private static final class BoostScheduler {
+        private long mDeadlineUs;
+
+        private long mRequested;
+        private long mMerged;
+        private long mIssued;
+        private long mBoostedUs;
+
+        /**
+         * @param nowUs current time, in microseconds
+         * @param durationUs requested boost duration, in microseconds
+         * @return the duration to boost for from now on, or 0 if the boost in effect covers
+         *         the request
+         */
+        synchronized long schedule(long nowUs, int durationUs) {
+            mRequested++;
+            final long endUs = nowUs + durationUs;
+            if (endUs <= mDeadlineUs) {
+                mMerged++;
+                return 0;
             }
+            mIssued++;
+            mBoostedUs += endUs - Math.max(nowUs, mDeadlineUs);
+            mDeadlineUs = endUs;
+            return durationUs;
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            pw.println(" Boost requests: " + mRequested + " requested, " + mMerged
+                    + " merged, " + mIssued + " issued, " + mBoostedUs / 1000
+                    + "ms boosted");
+            pw.println();
         }
     }
 
@@ -538,6 +725,9 @@ public class PerformanceManagerService extends CMSystemService {
      */
     private final class BoostHandler extends Handler {
 
+        // The profile last passed to the power HAL, only used on this thread
+        private int mLastProfileHint = -1;
+
         public BoostHandler(Looper looper) {
             super(looper, null, true /*async*/);
         }
@@ -546,14 +736,32 @@ public class PerformanceManagerService extends CMSystemService {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_CPU_BOOST:
-                    mPm.powerHint(POWER_HINT_CPU_BOOST, msg.arg1);
-                    mBoostLog.log(BoostLog.CPU_BOOST, "duration=" + msg.arg1);
+                    final long durationUs = mBoostScheduler.schedule(
+                            SystemClock.elapsedRealtimeNanos() / 1000, msg.arg1);
+                    if (durationUs > 0) {
+                        mPm.powerHint(POWER_HINT_CPU_BOOST, (int) durationUs);
+                        mBoostLog.log(BoostLog.CPU_BOOST, "duration=" + durationUs);
+                    }
                     break;
                 case MSG_SET_PROFILE:
+                    if (msg.arg1 == mLastProfileHint) {
+                        // The profile was switched away from and back before the hint
+                        // switching away was sent, and that hint was dropped
+                        break;
+                    }
+                    mLastProfileHint = msg.arg1;
                     mPm.powerHint(POWER_HINT_SET_PROFILE, msg.arg1);
                     mBoostLog.log((msg.arg2 == 1 ? BoostLog.USER_PROFILE : BoostLog.APP_PROFILE),
                             "profile=" + msg.arg1);
                     break;
+                case MSG_ACTIVITY_RESUMED:
+                    final ComponentName cn = (ComponentName) msg.obj;
+                    final String activityName = cn != null ? cn.flattenToString() : null;
+                    synchronized (mLock) {
+                        mCurrentActivityName = activityName;
+                        applyAppProfileLocked();
+                    }
+                    break;
             }
         }
     }
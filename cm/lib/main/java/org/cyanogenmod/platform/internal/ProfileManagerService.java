@@ -26,7 +26,14 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiSsid;
 import android.os.Message;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.ArraySet;
+import android.util.AtomicFile;
+import android.util.SparseArray;
 import com.android.internal.policy.IKeyguardService;
 import cyanogenmod.providers.CMSettings;
 import org.xmlpull.v1.XmlPullParser;
@@ -49,6 +56,7 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.os.ParcelUuid;
 
+import com.android.server.ServiceThread;
 import com.android.server.SystemService;
 
 import cyanogenmod.app.CMContextConstants;
@@ -56,14 +64,19 @@ import cyanogenmod.app.Profile;
 import cyanogenmod.app.ProfileGroup;
 import cyanogenmod.app.ProfileManager;
 import cyanogenmod.app.IProfileManager;
+import cyanogenmod.app.INotificationGroupListener;
 
 import java.util.Collection;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -81,9 +94,60 @@ public class ProfileManagerService extends CMSystemService {
 
     /* package */ static final File PROFILE_FILE =
             new File(Environment.getDataSystemDirectory(), "profiles.xml");
+    /* package */ static final File PROFILE_STORE_FILE =
+            new File(Environment.getDataSystemDirectory(), "profiles.bin");
 
     private static final int MSG_SEND_PROFILE_STATE = 10;
 
+    // Delay saving changes so bursts of them are written together
+    private static final long PERSIST_DELAY_MS = 500;
+    private static final long PERSIST_MAX_DELAY_MS = 2000;
+    // profiles.xml only serves backups and restores, so it is refreshed far less often
+    private static final long XML_EXPORT_DELAY_MS = 60 * 1000;
+
+    /**
+     * Immutable snapshot of the profiles, the notification groups and the active profile.
+     * Binder queries read the current snapshot without locking. Changes are made to the
+     * working copies under mStateLock and then published as a new snapshot.
+     */
+    private static final class State {
+        final Map<UUID, Profile> profiles;
+        // Match UUIDs and names, used for reverse compatibility
+        final Map<String, UUID> profileNames;
+        final Map<UUID, NotificationGroup> groups;
+        // The group of each package, looked up when notifications are posted
+        final Map<String, NotificationGroup> packageGroups;
+        final Profile activeProfile;
+
+        State(Map<UUID, Profile> profiles, Map<String, UUID> profileNames,
+                Map<UUID, NotificationGroup> groups, Profile activeProfile) {
+            this.profiles = Collections.unmodifiableMap(new HashMap<UUID, Profile>(profiles));
+            this.profileNames =
+                    Collections.unmodifiableMap(new HashMap<String, UUID>(profileNames));
+            this.groups = Collections.unmodifiableMap(
+                    new HashMap<UUID, NotificationGroup>(groups));
+            final HashMap<String, NotificationGroup> packageGroups =
+                    new HashMap<String, NotificationGroup>();
+            for (NotificationGroup group : groups.values()) {
+                for (String pkg : group.getPackages()) {
+                    if (!packageGroups.containsKey(pkg)) {
+                        packageGroups.put(pkg, group);
+                    }
+                }
+            }
+            this.packageGroups = Collections.unmodifiableMap(packageGroups);
+            this.activeProfile = activeProfile;
+        }
+    }
+
+    private volatile State mState = new State(Collections.<UUID, Profile>emptyMap(),
+            Collections.<String, UUID>emptyMap(), Collections.<UUID, NotificationGroup>emptyMap(),
+            null);
+
+    // Guards the working copies below, the pending changes and publishing mState. Whoever
+    // also needs the service's own monitor, which guards saving, takes that one first.
+    private final Object mStateLock = new Object();
+
     private Map<UUID, Profile> mProfiles;
 
     // Match UUIDs and names, used for reverse compatibility
@@ -91,6 +155,10 @@ public class ProfileManagerService extends CMSystemService {
 
     private Map<UUID, NotificationGroup> mGroups;
 
+    // UUIDs of the profiles having a trigger, by trigger type and state, then trigger id
+    private final SparseArray<HashMap<String, ArraySet<UUID>>> mTriggerIndex =
+            new SparseArray<HashMap<String, ArraySet<UUID>>>();
+
     private Profile mActiveProfile;
 
     // Well-known UUID of the wildcard group
@@ -100,11 +168,64 @@ public class ProfileManagerService extends CMSystemService {
 
     private Context mContext;
     private Handler mHandler;
+    // Whether the binary store has to be rewritten as a whole on the next save
     private boolean mDirty;
     private BackupManager mBackupManager;
     private ProfileTriggerHelper mTriggerHelper;
     private Profile mEmptyProfile;
 
+    private final AtomicFile mProfileFile = new AtomicFile(PROFILE_FILE);
+    private final ProfileStore mProfileStore;
+    // Whether profiles.xml is behind the binary store. Guarded by this.
+    private boolean mXmlDirty;
+    private boolean mXmlExportScheduled;
+    // Changes since the last save, appended to the journal of the binary store on the next one.
+    // Guarded by mStateLock.
+    private ArraySet<UUID> mChangedProfiles = new ArraySet<UUID>();
+    private ArraySet<UUID> mChangedGroups = new ArraySet<UUID>();
+    private ArraySet<UUID> mRemovedProfiles = new ArraySet<UUID>();
+    private ArraySet<UUID> mRemovedGroups = new ArraySet<UUID>();
+    private boolean mActiveChanged;
+    private final Runnable mExportXmlRunnable = new Runnable() {
+        @Override
+        public void run() {
+            exportXml();
+        }
+    };
+    // Clients caching the notification group of packages
+    private final RemoteCallbackList<INotificationGroupListener> mGroupListeners =
+            new RemoteCallbackList<INotificationGroupListener>();
+    private final Runnable mNotifyGroupListeners = new Runnable() {
+        @Override
+        public void run() {
+            int N = mGroupListeners.beginBroadcast();
+            try {
+                for (int i = 0; i < N; i++) {
+                    try {
+                        mGroupListeners.getBroadcastItem(i).onNotificationGroupsChanged();
+                    } catch (RemoteException e) {
+                        // The RemoteCallbackList will take care of removing the dead object
+                    }
+                }
+            } finally {
+                mGroupListeners.finishBroadcast();
+            }
+        }
+    };
+    private final ServiceThread mPersistThread;
+    private final Handler mPersistHandler;
+    // Time the oldest unsaved change was scheduled at, or 0. Guarded by mPersistRunnable.
+    private long mPersistRequestTime;
+    private final Runnable mPersistRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mPersistRunnable) {
+                mPersistRequestTime = 0;
+            }
+            persistIfDirty();
+        }
+    };
+
     private Runnable mBindKeyguard = new Runnable() {
         @Override
         public void run() {
@@ -134,10 +255,11 @@ public class ProfileManagerService extends CMSystemService {
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
             if (action.equals(Intent.ACTION_LOCALE_CHANGED)) {
-                persistIfDirty();
+                persistNow();
+                // Localized names are resolved again while loading
                 initialize();
             } else if (action.equals(Intent.ACTION_SHUTDOWN)) {
-                persistIfDirty();
+                persistNow();
             }
         }
     };
@@ -162,10 +284,11 @@ public class ProfileManagerService extends CMSystemService {
     };
 
     private void maybeApplyActiveProfile() {
+        final Profile activeProfile = getActiveProfileInternal();
         final List<Profile.ProfileTrigger> wiFiTriggers
-                = mActiveProfile.getTriggersFromType(Profile.TriggerType.WIFI);
+                = activeProfile.getTriggersFromType(Profile.TriggerType.WIFI);
         final List<Profile.ProfileTrigger> blueToothTriggers
-                = mActiveProfile.getTriggersFromType(Profile.TriggerType.BLUETOOTH);
+                = activeProfile.getTriggersFromType(Profile.TriggerType.BLUETOOTH);
 
         boolean selectProfile = false;
         if (wiFiTriggers.size() == 0 && blueToothTriggers.size() == 0) {
@@ -198,7 +321,7 @@ public class ProfileManagerService extends CMSystemService {
             }
         }
 
-        if (selectProfile) mActiveProfile.doSelect(mContext, mKeyguardService);
+        if (selectProfile) activeProfile.doSelect(mContext, mKeyguardService);
     }
 
     private String getActiveSSID() {
@@ -232,7 +355,12 @@ public class ProfileManagerService extends CMSystemService {
     public ProfileManagerService(Context context) {
         super(context);
         mContext = context;
+        mProfileStore = new ProfileStore(PROFILE_STORE_FILE, context);
         mHandler = new Handler(mHandlerCallback);
+        mPersistThread = new ServiceThread(TAG + "Writer",
+                Process.THREAD_PRIORITY_BACKGROUND, true /*allowIo*/);
+        mPersistThread.start();
+        mPersistHandler = new Handler(mPersistThread.getLooper());
         if (context.getPackageManager().hasSystemFeature(
                 CMContextConstants.Features.PROFILES)) {
             publishBinderService(CMContextConstants.CM_PROFILE_SERVICE, mService);
@@ -287,22 +415,47 @@ public class ProfileManagerService extends CMSystemService {
     }
 
     private void initialize() {
-        initialize(false);
+        initialize(false, false);
     }
 
-    private void initialize(boolean skipFile) {
+    /**
+     * (Re)loads the profiles and notification groups.
+     * @param skipFile whether to start over from the default profiles
+     * @param fromXml whether to load profiles.xml even if the binary store is usable
+     */
+    private void initialize(boolean skipFile, boolean fromXml) {
+        synchronized (this) {
+            synchronized (mStateLock) {
+                initializeLocked(skipFile, fromXml);
+                publishStateLocked();
+            }
+        }
+    }
+
+    private void initializeLocked(boolean skipFile, boolean fromXml) {
         mTriggerHelper = new ProfileTriggerHelper(mContext, mHandler, this);
         mProfiles = new HashMap<UUID, Profile>();
         mProfileNames = new HashMap<String, UUID>();
         mGroups = new HashMap<UUID, NotificationGroup>();
+        synchronized (mTriggerIndex) {
+            mTriggerIndex.clear();
+        }
         mEmptyProfile = new Profile("EmptyProfile");
         mDirty = false;
+        clearChanges();
 
         boolean init = skipFile;
 
+        if (!skipFile && !fromXml && loadFromStore()) {
+            return;
+        }
+
         if (!skipFile) {
             try {
                 loadFromFile();
+                // Have the binary store (re)created from what was just parsed
+                mDirty = true;
+                schedulePersist();
             } catch (XmlPullParserException e) {
                 init = true;
             } catch (IOException e) {
@@ -325,7 +478,7 @@ public class ProfileManagerService extends CMSystemService {
         public void resetAll() {
             long token = clearCallingIdentity();
             enforceChangePermissions();
-            initialize(true);
+            initialize(true, false);
             restoreCallingIdentity(token);
         }
 
@@ -336,7 +489,8 @@ public class ProfileManagerService extends CMSystemService {
                 Log.w(TAG, "Unable to set active profile because profiles are disabled.");
                 return false;
             }
-            if (!mProfileNames.containsKey(profileName)) {
+            final UUID profileUuid = mState.profileNames.get(profileName);
+            if (profileUuid == null) {
                 // Since profileName could not be casted into a UUID, we can call it a string.
                 Log.w(TAG, "Unable to find profile to set active, based on string: " + profileName);
                 return false;
@@ -352,9 +506,9 @@ public class ProfileManagerService extends CMSystemService {
              * - broadcast INTENT_ACTION_PROFILE_SELECTED
              */
             long token = clearCallingIdentity();
-            setActiveProfileInternal(mProfiles.get(mProfileNames.get(profileName)), true);
+            boolean ret = setActiveProfileInternal(profileUuid, true);
             restoreCallingIdentity(token);
-            return true;
+            return ret;
         }
 
         @Override
@@ -378,9 +532,12 @@ public class ProfileManagerService extends CMSystemService {
         @Override
         public boolean addProfile(Profile profile) {
             enforceChangePermissions();
-            addProfileInternal(profile);
+            synchronized (mStateLock) {
+                addProfileInternal(profile);
+                publishStateLocked();
+            }
             long token = clearCallingIdentity();
-            persistIfDirty();
+            schedulePersist();
             restoreCallingIdentity(token);
             return true;
         }
@@ -388,10 +545,11 @@ public class ProfileManagerService extends CMSystemService {
         @Override
         @Deprecated
         public Profile getProfileByName(String profileName) {
-            if (mProfileNames.containsKey(profileName)) {
-                return mProfiles.get(mProfileNames.get(profileName));
-            } else if (mProfiles.containsKey(UUID.fromString((profileName)))) {
-                return mProfiles.get(UUID.fromString(profileName));
+            final State state = mState;
+            if (state.profileNames.containsKey(profileName)) {
+                return state.profiles.get(state.profileNames.get(profileName));
+            } else if (state.profiles.containsKey(UUID.fromString((profileName)))) {
+                return state.profiles.get(UUID.fromString(profileName));
             } else {
                 return null;
             }
@@ -405,7 +563,8 @@ public class ProfileManagerService extends CMSystemService {
 
         @Override
         public Profile[] getProfiles() {
-            Profile[] profiles = getProfileList().toArray(new Profile[mProfiles.size()]);
+            final Collection<Profile> profileList = getProfileList();
+            Profile[] profiles = profileList.toArray(new Profile[profileList.size()]);
             Arrays.sort(profiles);
             return profiles;
         }
@@ -422,37 +581,47 @@ public class ProfileManagerService extends CMSystemService {
         @Override
         public boolean removeProfile(Profile profile) {
             enforceChangePermissions();
-            if (mProfileNames.remove(profile.getName()) != null
-                    && mProfiles.remove(profile.getUuid()) != null) {
-                mDirty = true;
-                long token = clearCallingIdentity();
-                persistIfDirty();
-                restoreCallingIdentity(token);
-                return true;
-            } else {
-                return false;
+            synchronized (mStateLock) {
+                if (mProfileNames.remove(profile.getName()) == null
+                        || mProfiles.remove(profile.getUuid()) == null) {
+                    return false;
+                }
+                removeProfileTriggers(profile.getUuid());
+                noteProfileRemoved(profile.getUuid());
+                publishStateLocked();
             }
+            long token = clearCallingIdentity();
+            schedulePersist();
+            restoreCallingIdentity(token);
+            return true;
         }
 
         @Override
         public void updateProfile(Profile profile) {
             enforceChangePermissions();
-            Profile old = mProfiles.get(profile.getUuid());
+            final boolean active;
+            synchronized (mStateLock) {
+                Profile old = mProfiles.get(profile.getUuid());
 
-            if (old == null) {
-                return;
-            }
+                if (old == null) {
+                    return;
+                }
 
-            mProfileNames.remove(old.getName());
-            mProfileNames.put(profile.getName(), profile.getUuid());
-            mProfiles.put(profile.getUuid(), profile);
-            /* no need to set mDirty, if the profile was actually changed,
-             * it's marked as dirty by itself */
+                mProfileNames.remove(old.getName());
+                mProfileNames.put(profile.getName(), profile.getUuid());
+                mProfiles.put(profile.getUuid(), profile);
+                removeProfileTriggers(old.getUuid());
+                addProfileTriggers(profile);
+                noteProfileChanged(profile.getUuid());
+                publishStateLocked();
+                active = mActiveProfile != null
+                        && mActiveProfile.getUuid().equals(profile.getUuid());
+            }
             long token = clearCallingIdentity();
-            persistIfDirty();
+            schedulePersist();
 
             // Also update if we changed the active profile
-            if (mActiveProfile != null && mActiveProfile.getUuid().equals(profile.getUuid())) {
+            if (active) {
                 setActiveProfileInternal(profile, true);
             }
             restoreCallingIdentity(token);
@@ -460,13 +629,13 @@ public class ProfileManagerService extends CMSystemService {
 
         @Override
         public boolean profileExists(ParcelUuid profileUuid) {
-            return mProfiles.containsKey(profileUuid.getUuid());
+            return mState.profiles.containsKey(profileUuid.getUuid());
         }
 
         @Override
         @Deprecated
         public boolean profileExistsByName(String profileName) {
-            for (Map.Entry<String, UUID> entry : mProfileNames.entrySet()) {
+            for (Map.Entry<String, UUID> entry : mState.profileNames.entrySet()) {
                 if (entry.getKey().equalsIgnoreCase(profileName)) {
                     return true;
                 }
@@ -477,7 +646,7 @@ public class ProfileManagerService extends CMSystemService {
         @Override
         @Deprecated
         public boolean notificationGroupExistsByName(String notificationGroupName) {
-            for (NotificationGroup group : mGroups.values()) {
+            for (NotificationGroup group : mState.groups.values()) {
                 if (group.getName().equalsIgnoreCase(notificationGroupName)) {
                     return true;
                 }
@@ -487,56 +656,66 @@ public class ProfileManagerService extends CMSystemService {
 
         @Override
         public NotificationGroup[] getNotificationGroups() {
-            return mGroups.values().toArray(new NotificationGroup[mGroups.size()]);
+            final Collection<NotificationGroup> groups = mState.groups.values();
+            return groups.toArray(new NotificationGroup[groups.size()]);
         }
 
         @Override
         public void addNotificationGroup(NotificationGroup group) {
             enforceChangePermissions();
-            addNotificationGroupInternal(group);
+            synchronized (mStateLock) {
+                addNotificationGroupInternal(group);
+                publishStateLocked();
+            }
             long token = clearCallingIdentity();
-            persistIfDirty();
+            schedulePersist();
             restoreCallingIdentity(token);
         }
 
         @Override
         public void removeNotificationGroup(NotificationGroup group) {
             enforceChangePermissions();
-            mDirty |= mGroups.remove(group.getUuid()) != null;
-            // Remove the corresponding ProfileGroup from all the profiles too if
-            // they use it.
-            for (Profile profile : mProfiles.values()) {
-                profile.removeProfileGroup(group.getUuid());
+            synchronized (mStateLock) {
+                if (mGroups.remove(group.getUuid()) != null) {
+                    noteGroupRemoved(group.getUuid());
+                }
+                // Remove the corresponding ProfileGroup from all the profiles too if
+                // they use it.
+                for (Map.Entry<UUID, Profile> entry : mProfiles.entrySet()) {
+                    if (entry.getValue().getProfileGroup(group.getUuid()) != null) {
+                        final Profile profile = copyProfileLocked(entry);
+                        profile.removeProfileGroup(group.getUuid());
+                        noteProfileChanged(profile.getUuid());
+                    }
+                }
+                publishStateLocked();
             }
             long token = clearCallingIdentity();
-            persistIfDirty();
+            schedulePersist();
             restoreCallingIdentity(token);
         }
 
         @Override
         public void updateNotificationGroup(NotificationGroup group) {
             enforceChangePermissions();
-            NotificationGroup old = mGroups.get(group.getUuid());
-            if (old == null) {
-                return;
-            }
+            synchronized (mStateLock) {
+                NotificationGroup old = mGroups.get(group.getUuid());
+                if (old == null) {
+                    return;
+                }
 
-            mGroups.put(group.getUuid(), group);
-            /* no need to set mDirty, if the group was actually changed,
-             * it's marked as dirty by itself */
+                mGroups.put(group.getUuid(), group);
+                noteGroupChanged(group.getUuid());
+                publishStateLocked();
+            }
             long token = clearCallingIdentity();
-            persistIfDirty();
+            schedulePersist();
             restoreCallingIdentity(token);
         }
 
         @Override
         public NotificationGroup getNotificationGroupForPackage(String pkg) {
-            for (NotificationGroup group : mGroups.values()) {
-                if (group.hasPackage(pkg)) {
-                    return group;
-                }
-            }
-            return null;
+            return mState.packageGroups.get(pkg);
         }
 
         @Override
@@ -544,7 +723,17 @@ public class ProfileManagerService extends CMSystemService {
             if (uuid.getUuid().equals(mWildcardGroup.getUuid())) {
                 return mWildcardGroup;
             }
-            return mGroups.get(uuid.getUuid());
+            return mState.groups.get(uuid.getUuid());
+        }
+
+        @Override
+        public void registerNotificationGroupListener(INotificationGroupListener listener) {
+            mGroupListeners.register(listener);
+        }
+
+        @Override
+        public void unregisterNotificationGroupListener(INotificationGroupListener listener) {
+            mGroupListeners.unregister(listener);
         }
 
         @Override
@@ -561,6 +750,7 @@ public class ProfileManagerService extends CMSystemService {
         }
     };
 
+    // Called with mStateLock held, the caller publishes the change
     private void addProfileInternal(Profile profile) {
         // Make sure this profile has all of the correct groups.
         for (NotificationGroup group : mGroups.values()) {
@@ -569,34 +759,122 @@ public class ProfileManagerService extends CMSystemService {
         ensureGroupInProfile(profile, mWildcardGroup, true);
         mProfiles.put(profile.getUuid(), profile);
         mProfileNames.put(profile.getName(), profile.getUuid());
-        mDirty = true;
+        removeProfileTriggers(profile.getUuid());
+        addProfileTriggers(profile);
+        noteProfileChanged(profile.getUuid());
+    }
+
+    private static int getTriggerIndexKey(int type, int state) {
+        return (type << 8) | state;
+    }
+
+    private void addProfileTriggers(Profile profile) {
+        synchronized (mTriggerIndex) {
+            for (int type = Profile.TriggerType.WIFI; type <= Profile.TriggerType.BLUETOOTH;
+                    type++) {
+                for (Profile.ProfileTrigger trigger : profile.getTriggersFromType(type)) {
+                    final int key = getTriggerIndexKey(type, trigger.getState());
+                    HashMap<String, ArraySet<UUID>> triggers = mTriggerIndex.get(key);
+                    if (triggers == null) {
+                        triggers = new HashMap<String, ArraySet<UUID>>();
+                        mTriggerIndex.put(key, triggers);
+                    }
+                    ArraySet<UUID> uuids = triggers.get(trigger.getId());
+                    if (uuids == null) {
+                        uuids = new ArraySet<UUID>(1);
+                        triggers.put(trigger.getId(), uuids);
+                    }
+                    uuids.add(profile.getUuid());
+                }
+            }
+        }
+    }
+
+    private void removeProfileTriggers(UUID profileUuid) {
+        synchronized (mTriggerIndex) {
+            for (int i = 0; i < mTriggerIndex.size(); i++) {
+                final Iterator<ArraySet<UUID>> it = mTriggerIndex.valueAt(i).values().iterator();
+                while (it.hasNext()) {
+                    final ArraySet<UUID> uuids = it.next();
+                    if (uuids.remove(profileUuid) && uuids.isEmpty()) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks up the profiles having a trigger of the given type and id set to the given state.
+     * @return The UUIDs of the matching profiles, or null if there are none.
+     */
+    /* package */ UUID[] getProfilesForTrigger(int type, String id, int state) {
+        synchronized (mTriggerIndex) {
+            final HashMap<String, ArraySet<UUID>> triggers =
+                    mTriggerIndex.get(getTriggerIndexKey(type, state));
+            final ArraySet<UUID> uuids = triggers != null ? triggers.get(id) : null;
+            if (uuids == null) {
+                return null;
+            }
+            return uuids.toArray(new UUID[uuids.size()]);
+        }
     }
 
     private void ensureGroupInProfile(Profile profile,
                                       NotificationGroup group, boolean defaultGroup) {
+        if (needsGroup(profile, group, defaultGroup)) {
+            /* didn't find any, create new group */
+            profile.addProfileGroup(new ProfileGroup(group.getUuid(), defaultGroup));
+        }
+    }
+
+    private static boolean needsGroup(Profile profile,
+                                      NotificationGroup group, boolean defaultGroup) {
         if (profile.getProfileGroup(group.getUuid()) != null) {
-            return;
+            return false;
         }
 
         /* enforce a matchup between profile and notification group, which not only
          * works by UUID, but also by name for backwards compatibility */
         for (ProfileGroup pg : profile.getProfileGroups()) {
             if (pg.matches(group, defaultGroup)) {
-                return;
+                return false;
             }
         }
+        return true;
+    }
 
-        /* didn't find any, create new group */
-        profile.addProfileGroup(new ProfileGroup(group.getUuid(), defaultGroup));
+    /**
+     * Replaces the profile of the entry with a copy the caller can change. The published
+     * snapshot keeps the original, which the persist thread and binder callers may be
+     * reading without mStateLock. Called with mStateLock held.
+     */
+    private Profile copyProfileLocked(Map.Entry<UUID, Profile> entry) {
+        final Profile original = entry.getValue();
+        final Parcel parcel = Parcel.obtain();
+        final Profile copy;
+        try {
+            original.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            copy = Profile.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+        entry.setValue(copy);
+        if (mActiveProfile == original) {
+            mActiveProfile = copy;
+        }
+        return copy;
     }
 
-    private Profile getProfileInternal(UUID profileUuid) {
+    /* package */ Profile getProfileInternal(UUID profileUuid) {
+        final Map<UUID, Profile> profiles = mState.profiles;
         // use primary UUID first
-        if (mProfiles.containsKey(profileUuid)) {
-            return mProfiles.get(profileUuid);
+        if (profiles.containsKey(profileUuid)) {
+            return profiles.get(profileUuid);
         }
         // if no match was found: try secondary UUID
-        for (Profile p : mProfiles.values()) {
+        for (Profile p : profiles.values()) {
             for (UUID uuid : p.getSecondaryUuids()) {
                 if (profileUuid.equals(uuid)) {
                     return p;
@@ -608,56 +886,231 @@ public class ProfileManagerService extends CMSystemService {
     }
 
     /* package */ Collection<Profile> getProfileList() {
-        return mProfiles.values();
+        return mState.profiles.values();
+    }
+
+    /**
+     * Publishes the working copies as the new snapshot binder queries read from.
+     * Called with mStateLock held.
+     */
+    private void publishStateLocked() {
+        final Map<String, NotificationGroup> lastPackageGroups = mState.packageGroups;
+        mState = new State(mProfiles, mProfileNames, mGroups, mActiveProfile);
+        if (!lastPackageGroups.equals(mState.packageGroups)) {
+            // Off the lock, as listeners in this process are called directly
+            mHandler.removeCallbacks(mNotifyGroupListeners);
+            mHandler.post(mNotifyGroupListeners);
+        }
     }
 
     private String getXmlString() {
+        final State state = mState;
         StringBuilder builder = new StringBuilder();
         builder.append("<profiles>\n<active>");
-        builder.append(TextUtils.htmlEncode(mActiveProfile.getUuid().toString()));
+        builder.append(TextUtils.htmlEncode(state.activeProfile.getUuid().toString()));
         builder.append("</active>\n");
 
-        for (Profile p : mProfiles.values()) {
+        for (Profile p : state.profiles.values()) {
             p.getXmlString(builder, mContext);
         }
-        for (NotificationGroup g : mGroups.values()) {
+        for (NotificationGroup g : state.groups.values()) {
             g.getXmlString(builder, mContext);
         }
         builder.append("</profiles>\n");
         return builder.toString();
     }
 
+    /**
+     * Schedules the profile data to be saved on the writer thread, if it changed. Bursts of
+     * changes are saved together, but never later than PERSIST_MAX_DELAY_MS after the first.
+     */
+    private void schedulePersist() {
+        synchronized (mPersistRunnable) {
+            final long now = SystemClock.uptimeMillis();
+            if (mPersistRequestTime == 0) {
+                mPersistRequestTime = now;
+            }
+            mPersistHandler.removeCallbacks(mPersistRunnable);
+            mPersistHandler.postAtTime(mPersistRunnable,
+                    Math.min(now + PERSIST_DELAY_MS, mPersistRequestTime + PERSIST_MAX_DELAY_MS));
+        }
+    }
+
+    /**
+     * Saves the profile data and profiles.xml right away, if they changed, dropping any
+     * scheduled save.
+     */
+    private void persistNow() {
+        synchronized (mPersistRunnable) {
+            mPersistHandler.removeCallbacks(mPersistRunnable);
+            mPersistRequestTime = 0;
+        }
+        exportXml();
+    }
+
+    /**
+     * Saves the changes since the last save to the binary store. They are appended to its
+     * journal, unless the whole store has to be rewritten or the journal grew too large.
+     */
     private synchronized void persistIfDirty() {
-        boolean dirty = mDirty;
-        if (!dirty) {
-            for (Profile profile : mProfiles.values()) {
-                if (profile.isDirty()) {
-                    dirty = true;
-                    break;
+        final ArraySet<UUID> changedProfiles;
+        final ArraySet<UUID> changedGroups;
+        final ArraySet<UUID> removedProfiles;
+        final ArraySet<UUID> removedGroups;
+        final boolean activeChanged;
+        final State state;
+        synchronized (mStateLock) {
+            // The snapshot matches the changes, they are noted and published under the lock
+            state = mState;
+            changedProfiles = mChangedProfiles;
+            changedGroups = mChangedGroups;
+            removedProfiles = mRemovedProfiles;
+            removedGroups = mRemovedGroups;
+            activeChanged = mActiveChanged;
+            mChangedProfiles = new ArraySet<UUID>();
+            mChangedGroups = new ArraySet<UUID>();
+            mRemovedProfiles = new ArraySet<UUID>();
+            mRemovedGroups = new ArraySet<UUID>();
+            mActiveChanged = false;
+        }
+        if (!mDirty && changedProfiles.isEmpty() && changedGroups.isEmpty()
+                && removedProfiles.isEmpty() && removedGroups.isEmpty() && !activeChanged) {
+            return;
+        }
+
+        try {
+            Log.d(TAG, "Saving profile data...");
+            if (mDirty || !mProfileStore.canAppend() || mProfileStore.shouldCompact()) {
+                // After a failed save the changes are unknown, so everything is encoded again
+                mProfileStore.write(state.activeProfile.getUuid(),
+                        state.profiles.values(), state.groups.values(),
+                        mDirty ? null : changedProfiles, mDirty ? null : changedGroups);
+            } else {
+                final ArrayList<Profile> profiles =
+                        new ArrayList<Profile>(changedProfiles.size());
+                for (UUID uuid : changedProfiles) {
+                    final Profile profile = state.profiles.get(uuid);
+                    if (profile != null) {
+                        profiles.add(profile);
+                    } else {
+                        removedProfiles.add(uuid);
+                    }
                 }
+                final ArrayList<NotificationGroup> groups =
+                        new ArrayList<NotificationGroup>(changedGroups.size());
+                for (UUID uuid : changedGroups) {
+                    final NotificationGroup group = state.groups.get(uuid);
+                    if (group != null) {
+                        groups.add(group);
+                    } else {
+                        removedGroups.add(uuid);
+                    }
+                }
+                mProfileStore.append(activeChanged ? state.activeProfile.getUuid() : null,
+                        profiles, groups, removedProfiles, removedGroups);
+            }
+            Log.d(TAG, "Save completed.");
+            mDirty = false;
+            mXmlDirty = true;
+            if (!mXmlExportScheduled) {
+                mXmlExportScheduled = true;
+                mPersistHandler.postDelayed(mExportXmlRunnable, XML_EXPORT_DELAY_MS);
             }
+        } catch (Throwable e) {
+            Log.e(TAG, "Failed to save profile data", e);
+            // The changes are lost track of; have the next save rewrite everything
+            mDirty = true;
         }
-        if (!dirty) {
-            for (NotificationGroup group : mGroups.values()) {
-                if (group.isDirty()) {
-                    dirty = true;
-                    break;
-                }
+    }
+
+    /**
+     * Saves pending changes, then refreshes profiles.xml, which backups and restores use.
+     */
+    private synchronized void exportXml() {
+        mPersistHandler.removeCallbacks(mExportXmlRunnable);
+        mXmlExportScheduled = false;
+        persistIfDirty();
+        if (!mXmlDirty) {
+            return;
+        }
+        // persistIfDirty() scheduled another export; this one covers it
+        mPersistHandler.removeCallbacks(mExportXmlRunnable);
+        mXmlExportScheduled = false;
+
+        FileOutputStream fos = null;
+        try {
+            Log.d(TAG, "Exporting profile data...");
+            // Written to a new file that replaces the old one only once complete, so a
+            // crash in the middle of a write leaves the previous data intact
+            fos = mProfileFile.startWrite();
+            fos.write(getXmlString().getBytes(StandardCharsets.UTF_8));
+            mProfileFile.finishWrite(fos);
+            Log.d(TAG, "Export completed.");
+            mXmlDirty = false;
+            mBackupManager.dataChanged();
+        } catch (Throwable e) {
+            Log.e(TAG, "Failed to export profile data", e);
+            if (fos != null) {
+                mProfileFile.failWrite(fos);
             }
         }
-        if (dirty) {
-            try {
-                Log.d(TAG, "Saving profile data...");
-                FileWriter fw = new FileWriter(PROFILE_FILE);
-                fw.write(getXmlString());
-                fw.close();
-                Log.d(TAG, "Save completed.");
-                mDirty = false;
-                mBackupManager.dataChanged();
-            } catch (Throwable e) {
-                e.printStackTrace();
+    }
+
+    /**
+     * Loads the profiles and notification groups from the binary store.
+     * @return whether the store was usable; if not, nothing was loaded
+     */
+    private synchronized boolean loadFromStore() {
+        if (!mProfileStore.exists()) {
+            return false;
+        }
+
+        final long start = SystemClock.elapsedRealtime();
+        UUID active = null;
+        try {
+            for (ProfileStore.Record record : mProfileStore.read()) {
+                switch (record.type) {
+                    case ProfileStore.RECORD_ACTIVE:
+                        active = record.uuid;
+                        break;
+                    case ProfileStore.RECORD_GROUP:
+                        NotificationGroup group = record.decodeGroup(mContext);
+                        addNotificationGroupInternal(group);
+                        mProfileStore.noteLoaded(record, group);
+                        break;
+                    case ProfileStore.RECORD_PROFILE:
+                        Profile profile = record.decodeProfile(mContext);
+                        addProfileInternal(profile);
+                        mProfileStore.noteLoaded(record, profile);
+                        break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Unable to load profile store, falling back to " + PROFILE_FILE, e);
+            mProfiles.clear();
+            mProfileNames.clear();
+            mGroups.clear();
+            synchronized (mTriggerIndex) {
+                mTriggerIndex.clear();
             }
+            return false;
+        }
+
+        if (mProfiles.isEmpty()) {
+            return false;
         }
+        if (active == null || !mProfiles.containsKey(active)) {
+            active = mProfiles.keySet().iterator().next();
+        }
+        setActiveProfileInternal(active, false);
+        // Everything matches the store, which was written after the groups were reconciled
+        mDirty = false;
+        clearChanges();
+
+        if (LOCAL_LOGV) Log.v(TAG, "Loaded " + mProfiles.size() + " profiles and "
+                + mGroups.size() + " groups in " + (SystemClock.elapsedRealtime() - start)
+                + "ms");
+        return true;
     }
 
     private void enforceChangePermissions() {
@@ -668,21 +1121,26 @@ public class ProfileManagerService extends CMSystemService {
 
     // Called by SystemBackupAgent after files are restored to disk.
     void settingsRestored() {
-        initialize();
-        for (Profile p : mProfiles.values()) {
+        // The restored data is in profiles.xml; the binary store is out of date
+        initialize(false, true);
+        for (Profile p : getProfileList()) {
             p.validateRingtones(mContext);
         }
-        persistIfDirty();
+        schedulePersist();
     }
 
     private void loadFromFile() throws XmlPullParserException, IOException {
         XmlPullParserFactory xppf = XmlPullParserFactory.newInstance();
         XmlPullParser xpp = xppf.newPullParser();
-        FileReader fr = new FileReader(PROFILE_FILE);
-        xpp.setInput(fr);
-        loadXml(xpp, mContext);
-        fr.close();
-        persistIfDirty();
+        // Recovers the last complete save if a write was interrupted
+        FileInputStream fis = mProfileFile.openRead();
+        try {
+            xpp.setInput(fis, StandardCharsets.UTF_8.name());
+            loadXml(xpp, mContext);
+        } finally {
+            fis.close();
+        }
+        schedulePersist();
     }
 
     private void loadXml(XmlPullParser xpp, Context context) throws
@@ -735,26 +1193,31 @@ public class ProfileManagerService extends CMSystemService {
         try {
             loadXml(xml, mContext);
             mDirty = true;
-            persistIfDirty();
+            schedulePersist();
         } finally {
             xml.close();
         }
     }
 
     private boolean setActiveProfileInternal(UUID profileUuid, boolean doInit) {
-        if (!mProfiles.containsKey(profileUuid)) {
+        final Profile profile;
+        synchronized (mStateLock) {
+            // Not the snapshot, which is not published yet while loading
+            profile = mProfiles.get(profileUuid);
+        }
+        if (profile == null) {
             Log.e(TAG, "Cannot set active profile to: "
                     + profileUuid.toString() + " - does not exist.");
             return false;
         }
 
         if (LOCAL_LOGV) Log.v(TAG, "setActiveProfile(UUID, boolean) found UUID in mProfiles.");
-        setActiveProfileInternal(mProfiles.get(profileUuid), doInit);
+        setActiveProfileInternal(profile, doInit);
         return true;
     }
 
     /* package */ Profile getActiveProfileInternal() {
-        return mActiveProfile;
+        return mState.activeProfile;
     }
 
     /* package */ void setActiveProfileInternal(Profile newActiveProfile, boolean doInit) {
@@ -771,47 +1234,88 @@ public class ProfileManagerService extends CMSystemService {
         Log.d(TAG, "Set active profile to: " + newActiveProfile.getUuid().toString()
                 + " - " + newActiveProfile.getName());
 
-        Profile lastProfile = mActiveProfile;
-        mActiveProfile = newActiveProfile;
-        mDirty = true;
+        final Profile lastProfile;
+        synchronized (mStateLock) {
+            lastProfile = mActiveProfile;
+            mActiveProfile = newActiveProfile;
+            noteActiveProfileChanged();
+            publishStateLocked();
+        }
 
         if (doInit) {
             if (LOCAL_LOGV) Log.v(TAG, "setActiveProfile(Profile, boolean) - Running init");
             // Call profile's "doSelect"
-            mActiveProfile.doSelect(mContext, mKeyguardService);
+            newActiveProfile.doSelect(mContext, mKeyguardService);
 
             // Notify other applications of newly selected profile.
             Intent broadcast = new Intent(ProfileManager.INTENT_ACTION_PROFILE_SELECTED);
             broadcast.putExtra(ProfileManager.EXTRA_PROFILE_NAME,
-                    mActiveProfile.getName());
+                    newActiveProfile.getName());
             broadcast.putExtra(ProfileManager.EXTRA_PROFILE_UUID,
-                    mActiveProfile.getUuid().toString());
+                    newActiveProfile.getUuid().toString());
             broadcast.putExtra(ProfileManager.EXTRA_LAST_PROFILE_NAME,
                     lastProfile.getName());
             broadcast.putExtra(ProfileManager.EXTRA_LAST_PROFILE_UUID,
                     lastProfile.getUuid().toString());
 
             mContext.sendBroadcastAsUser(broadcast, UserHandle.ALL);
-            persistIfDirty();
-        } else if (lastProfile != mActiveProfile && ActivityManagerNative.isSystemReady()) {
+            schedulePersist();
+        } else if (lastProfile != newActiveProfile && ActivityManagerNative.isSystemReady()) {
             // Something definitely changed: notify.
             Intent broadcast = new Intent(ProfileManager.INTENT_ACTION_PROFILE_UPDATED);
             broadcast.putExtra(ProfileManager.EXTRA_PROFILE_NAME,
-                    mActiveProfile.getName());
+                    newActiveProfile.getName());
             broadcast.putExtra(ProfileManager.EXTRA_PROFILE_UUID,
-                    mActiveProfile.getUuid().toString());
+                    newActiveProfile.getUuid().toString());
             mContext.sendBroadcastAsUser(broadcast, UserHandle.ALL);
         }
     }
 
+    // Called with mStateLock held, the caller publishes the change
     private void addNotificationGroupInternal(NotificationGroup group) {
         if (mGroups.put(group.getUuid(), group) == null) {
             // If the above is true, then the ProfileGroup shouldn't exist in
             // the profile. Ensure it is added.
-            for (Profile profile : mProfiles.values()) {
-                ensureGroupInProfile(profile, group, false);
+            for (Map.Entry<UUID, Profile> entry : mProfiles.entrySet()) {
+                if (needsGroup(entry.getValue(), group, false)) {
+                    final Profile profile = copyProfileLocked(entry);
+                    profile.addProfileGroup(new ProfileGroup(group.getUuid(), false));
+                    noteProfileChanged(profile.getUuid());
+                }
             }
         }
-        mDirty = true;
+        noteGroupChanged(group.getUuid());
+    }
+
+    private void noteProfileChanged(UUID uuid) {
+        mRemovedProfiles.remove(uuid);
+        mChangedProfiles.add(uuid);
+    }
+
+    private void noteProfileRemoved(UUID uuid) {
+        mChangedProfiles.remove(uuid);
+        mRemovedProfiles.add(uuid);
+    }
+
+    private void noteGroupChanged(UUID uuid) {
+        mRemovedGroups.remove(uuid);
+        mChangedGroups.add(uuid);
+    }
+
+    private void noteGroupRemoved(UUID uuid) {
+        mChangedGroups.remove(uuid);
+        mRemovedGroups.add(uuid);
+    }
+
+    private void noteActiveProfileChanged() {
+        mActiveChanged = true;
+    }
+
+    private void clearChanges() {
+        mChangedProfiles.clear();
+        mChangedGroups.clear();
+        mRemovedProfiles.clear();
+        mRemovedGroups.clear();
+        mActiveChanged = false;
     }
 }
@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.platform.internal;
+
+import android.app.NotificationGroup;
+import android.content.Context;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import cyanogenmod.app.Profile;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Binary store for profiles and notification groups, used in place of parsing profiles.xml at
+ * boot. The base file starts with a magic number, a format version and a generation, followed
+ * by length-prefixed records:
+ *
+ * <pre>
+ *   byte type, long uuidMsb, long uuidLsb, int length, byte[length] payload
+ * </pre>
+ *
+ * Profile payloads are written by {@link Profile#writeToStream}, a versioned field encoding,
+ * and group payloads are the group's profiles.xml element; the active profile and removal
+ * records have no payload. Neither depends on parcel layouts or resource ids, and names are
+ * resolved from resource names when read, so the store survives updates and locale changes.
+ *
+ * Changes are appended to a journal next to the base file, so saving an edit costs I/O in
+ * proportion to the entities it touched. Reading replays the journal over the base file; once
+ * the journal outgrows the base file, both are compacted into a new base file of the next
+ * generation. A journal of another generation, left over by an interrupted compaction, is
+ * ignored, and a record torn by an interrupted append is cut off.
+ *
+ * Not thread safe; used on the ProfileManagerService writer thread and during initialization.
+ */
+final class ProfileStore {
+    private static final String TAG = "ProfileStore";
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final int MAGIC = 0x434d5046; // "CMPF"
+    private static final int JOURNAL_MAGIC = 0x434d504a; // "CMPJ"
+    private static final int VERSION = 3;
+
+    static final byte RECORD_ACTIVE = 1;
+    static final byte RECORD_PROFILE = 2;
+    static final byte RECORD_GROUP = 3;
+    static final byte RECORD_PROFILE_REMOVED = 4;
+    static final byte RECORD_GROUP_REMOVED = 5;
+
+    // Journals smaller than this are never compacted
+    private static final long MIN_COMPACT_JOURNAL_BYTES = 16 * 1024;
+
+    private static final int MAX_PAYLOAD_BYTES = 1024 * 1024;
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
+    /**
+     * A single record of the store, decoded on demand.
+     */
+    static final class Record {
+        final byte type;
+        final UUID uuid;
+        private final byte[] mPayload;
+        // Shared by the group records of a read()
+        private GroupParser mGroupParser;
+
+        Record(byte type, UUID uuid, byte[] payload) {
+            this.type = type;
+            this.uuid = uuid;
+            mPayload = payload;
+        }
+
+        Profile decodeProfile(Context context) throws IOException {
+            return Profile.fromStream(new DataInputStream(new ByteArrayInputStream(mPayload)),
+                    context);
+        }
+
+        NotificationGroup decodeGroup(Context context) throws IOException {
+            if (mGroupParser == null) {
+                mGroupParser = new GroupParser();
+            }
+            try {
+                final XmlPullParser xpp = mGroupParser.setInput(
+                        new String(mPayload, StandardCharsets.UTF_8));
+                if (xpp.nextTag() != XmlPullParser.START_TAG
+                        || !"notificationGroup".equals(xpp.getName())) {
+                    throw new IOException("Not a notification group: " + uuid);
+                }
+                return NotificationGroup.fromXml(xpp, context);
+            } catch (XmlPullParserException e) {
+                throw new IOException("Corrupt notification group " + uuid, e);
+            }
+        }
+    }
+
+    // Parser reused for the group records of a read(), created with the first one decoded
+    private static final class GroupParser {
+        private XmlPullParser mParser;
+
+        XmlPullParser setInput(String xml) throws XmlPullParserException {
+            if (mParser == null) {
+                mParser = XmlPullParserFactory.newInstance().newPullParser();
+            }
+            mParser.setInput(new StringReader(xml));
+            return mParser;
+        }
+    }
+
+    // Last encoded payload of each entity, reused while the entity is unchanged
+    private static final class Encoded {
+        final Object entity;
+        final byte[] payload;
+
+        Encoded(Object entity, byte[] payload) {
+            this.entity = entity;
+            this.payload = payload;
+        }
+    }
+
+    private final Context mContext;
+    private final AtomicFile mFile;
+    private final File mJournalFile;
+    private final ArrayMap<UUID, Encoded> mEncoded = new ArrayMap<UUID, Encoded>();
+
+    // Generation of the base file on disk, or -1 if there is none
+    private long mGeneration = -1;
+    private long mBaseBytes;
+    private long mJournalBytes;
+
+    ProfileStore(File file, Context context) {
+        mContext = context;
+        mFile = new AtomicFile(file);
+        mJournalFile = new File(file.getPath() + ".journal");
+    }
+
+    boolean exists() {
+        return mFile.getBaseFile().exists();
+    }
+
+    /**
+     * Reads the store, replaying the journal over the base file, without decoding the records.
+     * @return the active profile record, followed by the group and then the profile records
+     * @throws IOException if the store does not exist or is not in the expected format
+     */
+    List<Record> read() throws IOException {
+        mGeneration = -1;
+        Record active = null;
+        final LinkedHashMap<UUID, Record> groups = new LinkedHashMap<UUID, Record>();
+        final LinkedHashMap<UUID, Record> profiles = new LinkedHashMap<UUID, Record>();
+
+        final long generation;
+        final FileInputStream fis = mFile.openRead();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a profile store: " + mFile.getBaseFile());
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported profile store version " + version);
+            }
+            generation = in.readLong();
+
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final Record record = readRecord(in);
+                if (record.type == RECORD_ACTIVE) {
+                    active = record;
+                } else {
+                    apply(record, groups, profiles);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        mBaseBytes = mFile.getBaseFile().length();
+
+        // Replay the journal, as far as it is intact
+        mJournalBytes = 0;
+        if (mJournalFile.exists()) {
+            final DataInputStream journal = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mJournalFile)));
+            long validBytes = 0;
+            try {
+                if (journal.readInt() == JOURNAL_MAGIC && journal.readLong() == generation) {
+                    validBytes = 4 + 8;
+                    while (true) {
+                        final Record record = readRecord(journal);
+                        if (record.type == RECORD_ACTIVE) {
+                            active = record;
+                        } else {
+                            apply(record, groups, profiles);
+                        }
+                        validBytes += getRecordSize(record.mPayload);
+                    }
+                }
+            } catch (IOException e) {
+                // End of the journal, or a record torn by an interrupted append
+            } finally {
+                journal.close();
+            }
+
+            if (validBytes == 0) {
+                Log.w(TAG, "Discarding journal of another generation");
+                mJournalFile.delete();
+            } else if (validBytes < mJournalFile.length()) {
+                Log.w(TAG, "Cutting off " + (mJournalFile.length() - validBytes)
+                        + " bytes of torn journal records");
+                final RandomAccessFile raf = new RandomAccessFile(mJournalFile, "rw");
+                try {
+                    raf.setLength(validBytes);
+                } finally {
+                    raf.close();
+                }
+            }
+            mJournalBytes = validBytes;
+        }
+        mGeneration = generation;
+
+        final ArrayList<Record> records = new ArrayList<Record>(1 + groups.size()
+                + profiles.size());
+        if (active != null) {
+            records.add(active);
+        }
+        final GroupParser groupParser = new GroupParser();
+        for (Record group : groups.values()) {
+            group.mGroupParser = groupParser;
+        }
+        records.addAll(groups.values());
+        records.addAll(profiles.values());
+        return records;
+    }
+
+    /**
+     * Replaces the store with the given data, in a new base file and an empty journal. Only the
+     * entities that changed since they were last written are encoded again.
+     * @param changedProfiles the profiles changed since the last save, or null if unknown
+     * @param changedGroups the groups changed since the last save, or null if unknown
+     */
+    void write(UUID activeProfile, Collection<Profile> profiles,
+            Collection<NotificationGroup> groups, Collection<UUID> changedProfiles,
+            Collection<UUID> changedGroups) throws IOException {
+        final ArrayMap<UUID, Encoded> encoded =
+                new ArrayMap<UUID, Encoded>(profiles.size() + groups.size());
+        final long generation = mGeneration + 1;
+        int reused = 0;
+
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeInt(1 + profiles.size() + groups.size());
+
+            writeRecord(out, RECORD_ACTIVE, activeProfile, EMPTY_PAYLOAD);
+            // Groups go first, so they exist by the time the profiles referring to them load
+            for (NotificationGroup group : groups) {
+                final Encoded e = getEncoded(group.getUuid(), group,
+                        changedGroups == null || changedGroups.contains(group.getUuid()));
+                if (mEncoded.get(group.getUuid()) == e) {
+                    reused++;
+                }
+                encoded.put(group.getUuid(), e);
+                writeRecord(out, RECORD_GROUP, group.getUuid(), e.payload);
+            }
+            for (Profile profile : profiles) {
+                final Encoded e = getEncoded(profile.getUuid(), profile,
+                        changedProfiles == null || changedProfiles.contains(profile.getUuid()));
+                if (mEncoded.get(profile.getUuid()) == e) {
+                    reused++;
+                }
+                encoded.put(profile.getUuid(), e);
+                writeRecord(out, RECORD_PROFILE, profile.getUuid(), e.payload);
+            }
+
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+            throw e;
+        }
+
+        // The new base file includes everything the journal held
+        mJournalFile.delete();
+        mGeneration = generation;
+        mBaseBytes = mFile.getBaseFile().length();
+        mJournalBytes = 0;
+
+        mEncoded.clear();
+        mEncoded.putAll(encoded);
+        if (LOCAL_LOGV) Log.v(TAG, "Wrote " + encoded.size() + " entities, " + reused
+                + " unchanged");
+    }
+
+    /**
+     * Returns whether changes can be appended, that is whether there is a base file for them.
+     */
+    boolean canAppend() {
+        return mGeneration >= 0;
+    }
+
+    /**
+     * Returns whether the journal grew large enough that the store is to be compacted.
+     */
+    boolean shouldCompact() {
+        return mJournalBytes > Math.max(MIN_COMPACT_JOURNAL_BYTES, mBaseBytes);
+    }
+
+    /**
+     * Appends changed entities to the journal.
+     * @param activeProfile the new active profile, or null if it did not change
+     * @param profiles the profiles that were added or changed
+     * @param groups the groups that were added or changed
+     * @param removedProfiles the UUIDs of the removed profiles
+     * @param removedGroups the UUIDs of the removed groups
+     */
+    void append(UUID activeProfile, Collection<Profile> profiles,
+            Collection<NotificationGroup> groups, Collection<UUID> removedProfiles,
+            Collection<UUID> removedGroups) throws IOException {
+        if (!canAppend()) {
+            throw new IllegalStateException("No base file to append to");
+        }
+
+        // Assemble the whole batch first, so it goes to the journal in a single write
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final boolean newJournal = !mJournalFile.exists() || mJournalBytes == 0;
+        if (newJournal) {
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeLong(mGeneration);
+        }
+        for (UUID uuid : removedGroups) {
+            writeRecord(out, RECORD_GROUP_REMOVED, uuid, EMPTY_PAYLOAD);
+        }
+        for (UUID uuid : removedProfiles) {
+            writeRecord(out, RECORD_PROFILE_REMOVED, uuid, EMPTY_PAYLOAD);
+        }
+        for (NotificationGroup group : groups) {
+            final Encoded e = getEncoded(group.getUuid(), group, true);
+            mEncoded.put(group.getUuid(), e);
+            writeRecord(out, RECORD_GROUP, group.getUuid(), e.payload);
+        }
+        for (Profile profile : profiles) {
+            final Encoded e = getEncoded(profile.getUuid(), profile, true);
+            mEncoded.put(profile.getUuid(), e);
+            writeRecord(out, RECORD_PROFILE, profile.getUuid(), e.payload);
+        }
+        if (activeProfile != null) {
+            writeRecord(out, RECORD_ACTIVE, activeProfile, EMPTY_PAYLOAD);
+        }
+        out.flush();
+
+        final FileOutputStream fos = new FileOutputStream(mJournalFile, !newJournal);
+        try {
+            bytes.writeTo(fos);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        mJournalBytes += bytes.size();
+
+        for (UUID uuid : removedGroups) {
+            mEncoded.remove(uuid);
+        }
+        for (UUID uuid : removedProfiles) {
+            mEncoded.remove(uuid);
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "Appended " + bytes.size() + " bytes, journal is "
+                + mJournalBytes + " bytes");
+    }
+
+    /**
+     * Remembers the payload of a decoded record as the encoded form of its entity.
+     */
+    void noteLoaded(Record record, Object entity) {
+        mEncoded.put(record.uuid, new Encoded(entity, record.mPayload));
+    }
+
+    private Encoded getEncoded(UUID uuid, Object entity, boolean changed) throws IOException {
+        final Encoded e = mEncoded.get(uuid);
+        if (e != null && e.entity == entity && !changed) {
+            return e;
+        }
+        if (entity instanceof Profile) {
+            return new Encoded(entity, encode((Profile) entity));
+        }
+        return new Encoded(entity, encode((NotificationGroup) entity));
+    }
+
+    private static void apply(Record record, Map<UUID, Record> groups,
+            Map<UUID, Record> profiles) {
+        switch (record.type) {
+            case RECORD_GROUP:
+                groups.put(record.uuid, record);
+                break;
+            case RECORD_PROFILE:
+                profiles.put(record.uuid, record);
+                break;
+            case RECORD_GROUP_REMOVED:
+                groups.remove(record.uuid);
+                break;
+            case RECORD_PROFILE_REMOVED:
+                profiles.remove(record.uuid);
+                break;
+        }
+    }
+
+    private static Record readRecord(DataInputStream in) throws IOException {
+        final byte type = in.readByte();
+        final UUID uuid = new UUID(in.readLong(), in.readLong());
+        final int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD_BYTES) {
+            throw new IOException("Corrupt record of " + length + " bytes");
+        }
+        final byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Record(type, uuid, payload);
+    }
+
+    private static long getRecordSize(byte[] payload) {
+        return 1 + 8 + 8 + 4 + payload.length;
+    }
+
+    private static void writeRecord(DataOutputStream out, byte type, UUID uuid, byte[] payload)
+            throws IOException {
+        out.writeByte(type);
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    private byte[] encode(Profile profile) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        profile.writeToStream(out, mContext);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private byte[] encode(NotificationGroup group) {
+        final StringBuilder builder = new StringBuilder();
+        group.getXmlString(builder, mContext);
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -147,41 +147,40 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
         final UUID currentProfileUuid = activeProfile.getUuid();
 
         boolean newProfileSelected = false;
-        for (Profile p : mManagerService.getProfileList()) {
-            final int profileTriggerState = p.getTriggerState(type, id);
-            if (newState != profileTriggerState) {
+        final UUID[] matches = id != null
+                ? mManagerService.getProfilesForTrigger(type, id, newState) : null;
+        if (matches != null) {
+            for (UUID uuid : matches) {
+                if (currentProfileUuid.equals(uuid)) {
                     continue;
-            }
-
-            if (!currentProfileUuid.equals(p.getUuid())) {
-                mManagerService.setActiveProfileInternal(p, true);
-                newProfileSelected = true;
+                }
+                final Profile p = mManagerService.getProfileInternal(uuid);
+                if (p != null) {
+                    mManagerService.setActiveProfileInternal(p, true);
+                    newProfileSelected = true;
+                }
             }
         }
 
         if (!newProfileSelected) {
             //Does the active profile actually cares about this event?
-            for (ProfileTrigger trigger : activeProfile.getTriggersFromType(type)) {
-                final String triggerID = trigger.getId();
-                if (triggerID.equals(id)) {
-                    Intent intent
-                            = new Intent(ProfileManager.INTENT_ACTION_PROFILE_TRIGGER_STATE_CHANGED);
-                    intent.putExtra(ProfileManager.EXTRA_TRIGGER_ID, id);
-                    intent.putExtra(ProfileManager.EXTRA_TRIGGER_TYPE, type);
-                    intent.putExtra(ProfileManager.EXTRA_TRIGGER_STATE, newState);
-                    mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
-
-                    final int triggerState = trigger.getState();
-                    if ((newState == Profile.TriggerState.ON_CONNECT
-                            && triggerState == Profile.TriggerState.ON_CONNECT) ||
-                            (newState == Profile.TriggerState.ON_DISCONNECT
-                            && triggerState == Profile.TriggerState.ON_DISCONNECT)) {
-                        activeProfile.doSelect(mContext, null);
-                    }
-                    break;
+            final ProfileTrigger trigger = activeProfile.getTrigger(type, id);
+            if (trigger != null) {
+                Intent intent
+                        = new Intent(ProfileManager.INTENT_ACTION_PROFILE_TRIGGER_STATE_CHANGED);
+                intent.putExtra(ProfileManager.EXTRA_TRIGGER_ID, id);
+                intent.putExtra(ProfileManager.EXTRA_TRIGGER_TYPE, type);
+                intent.putExtra(ProfileManager.EXTRA_TRIGGER_STATE, newState);
+                mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
+
+                final int triggerState = trigger.getState();
+                if ((newState == Profile.TriggerState.ON_CONNECT
+                        && triggerState == Profile.TriggerState.ON_CONNECT) ||
+                        (newState == Profile.TriggerState.ON_DISCONNECT
+                        && triggerState == Profile.TriggerState.ON_DISCONNECT)) {
+                    activeProfile.doSelect(mContext, null);
                 }
             }
-
         }
     }
 
@@ -23,11 +23,10 @@ import android.hardware.SensorManager;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.PrintWriter;
-import java.util.Iterator;
-import java.util.LinkedList;
 
 public class AmbientLuxObserver {
 
@@ -43,12 +42,26 @@ public class AmbientLuxObserver {
 
     private boolean mLightSensorEnabled = false;
     private int mLightSensorRate;
+    // How long the sensor may hold readings in its FIFO before reporting them, 0 if it
+    // reports each one right away
+    private int mMaxReportLatencyUs = 0;
+    private long mLastSampleTime = 0;
 
     private float mAmbientLux = 0.0f;
 
     private static final int LOW = 0;
     private static final int HIGH = 1;
 
+    // Filters applied to the raw readings, see config_outdoorAmbientLuxFilter
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_MEDIAN = 1;
+
+    private final int mFilter;
+    // The last three raw readings, for the median filter
+    private final float[] mRecentLux = new float[3];
+    private int mRecentLuxIndex = 0;
+    private int mRecentLuxCount = 0;
+
     private int mState = LOW;
 
     private final AmbientLuxHandler mLuxHandler;
@@ -67,17 +80,21 @@ public class AmbientLuxObserver {
         mThresholdLux = thresholdLux;
         mHysteresisLux = hysteresisLux;
         mThresholdDuration = thresholdDuration;
-        mRingBuffer = new TimedMovingAverageRingBuffer(thresholdDuration);
 
         mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
         mLightSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_LIGHT);
         mLightSensorRate = context.getResources().getInteger(
                 com.android.internal.R.integer.config_autoBrightnessLightSensorRate);
+        mFilter = context.getResources().getInteger(
+                org.cyanogenmod.platform.internal.R.integer.config_outdoorAmbientLuxFilter);
+
+        // Sized for the samples of a whole window, so it doesn't need to grow in steady state
+        mRingBuffer = new TimedMovingAverageRingBuffer(thresholdDuration,
+                thresholdDuration / Math.max(mLightSensorRate, 1) + 1);
     }
 
     private class AmbientLuxHandler extends Handler {
 
-        private static final int MSG_UPDATE_LUX = 0;
         private static final int MSG_TRANSITION = 1;
 
         AmbientLuxHandler(Looper looper) {
@@ -86,43 +103,12 @@ public class AmbientLuxObserver {
 
         @Override
         public void handleMessage(Message msg) {
-            int direction = 0;
-            float lux = 0.0f;
-
-            synchronized (AmbientLuxObserver.this) {
-                switch (msg.what) {
-                    case MSG_UPDATE_LUX:
-                        lux = (Float) msg.obj;
-                        mRingBuffer.add(lux);
-
-                        // FALL THRU
-
-                    case MSG_TRANSITION:
-                        mAmbientLux = mRingBuffer.getAverage();
-
-                        if (DEBUG) {
-                            Log.d(TAG, "lux= " + lux + " mState=" + mState +
-                                       " mAmbientLux=" + mAmbientLux);
-                        }
-
-                        final float threshold = mState == HIGH
-                                ? mThresholdLux - mHysteresisLux : mThresholdLux;
-                        direction = mAmbientLux >= threshold ? HIGH : LOW;
-                        if (mState != direction) {
-                            mState = direction;
-                            if (mCallback != null) {
-                                mCallback.onTransition(mState, mAmbientLux);
-                            }
-                        }
-
-                        // check again in case we didn't get any
-                        // more readings because the sensor settled
-                        if (mRingBuffer.size() > 1) {
-                            removeMessages(MSG_TRANSITION);
-                            sendEmptyMessageDelayed(MSG_TRANSITION, mThresholdDuration / 2);
-                        }
-                        break;
-                }
+            switch (msg.what) {
+                case MSG_TRANSITION:
+                    synchronized (AmbientLuxObserver.this) {
+                        updateAmbientLuxLocked(SystemClock.elapsedRealtime());
+                    }
+                    break;
             }
         }
 
@@ -131,12 +117,73 @@ public class AmbientLuxObserver {
         }
     };
 
+    /**
+     * Reevaluates the state from the readings in the window. Called on the handler thread.
+     * @param now the time to evaluate the window at, in the
+     *        {@link SystemClock#elapsedRealtime()} base
+     */
+    private void updateAmbientLuxLocked(long now) {
+        mAmbientLux = mRingBuffer.getAverage(now);
+
+        if (DEBUG) {
+            Log.d(TAG, "mState=" + mState + " mAmbientLux=" + mAmbientLux);
+        }
+
+        final float threshold = mState == HIGH
+                ? mThresholdLux - mHysteresisLux : mThresholdLux;
+        final int direction = mAmbientLux >= threshold ? HIGH : LOW;
+        if (mState != direction) {
+            mState = direction;
+            if (mCallback != null) {
+                mCallback.onTransition(mState, mAmbientLux);
+            }
+        }
+
+        // check again in case we didn't get any
+        // more readings because the sensor settled
+        if (mRingBuffer.size() > 1) {
+            mLuxHandler.removeMessages(AmbientLuxHandler.MSG_TRANSITION);
+            mLuxHandler.sendEmptyMessageDelayed(AmbientLuxHandler.MSG_TRANSITION,
+                    mThresholdDuration / 2);
+        }
+    }
+
+    /**
+     * Returns the median of the last three readings when the median filter is enabled, so a
+     * single flickering reading doesn't move the average.
+     */
+    private float filterLocked(float lux) {
+        if (mFilter != FILTER_MEDIAN) {
+            return lux;
+        }
+        mRecentLux[mRecentLuxIndex] = lux;
+        mRecentLuxIndex = (mRecentLuxIndex + 1) % 3;
+        if (mRecentLuxCount < 3) {
+            mRecentLuxCount++;
+            return lux;
+        }
+        final float a = mRecentLux[0];
+        final float b = mRecentLux[1];
+        final float c = mRecentLux[2];
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
     private final SensorEventListener mListener = new SensorEventListener() {
         @Override
         public void onSensorChanged(SensorEvent event) {
-            if (mLightSensorEnabled) {
-                Message.obtain(mLuxHandler, AmbientLuxHandler.MSG_UPDATE_LUX,
-                               event.values[0]).sendToTarget();
+            // Delivered on the handler thread, see enableLightSensor()
+            synchronized (AmbientLuxObserver.this) {
+                if (mLightSensorEnabled) {
+                    final float lux = event.values[0];
+                    if (DEBUG) {
+                        Log.d(TAG, "lux= " + lux);
+                    }
+                    // Each reading of a batch is evaluated at its own time, so crossings in
+                    // the middle of a batch are reported as they were without batching
+                    final long time = getSampleTimeLocked(event);
+                    mRingBuffer.add(time, filterLocked(lux));
+                    updateAmbientLuxLocked(time);
+                }
             }
         }
 
@@ -146,6 +193,23 @@ public class AmbientLuxObserver {
         }
     };
 
+    /**
+     * Returns when a reading was taken, in the {@link SystemClock#elapsedRealtime()} base.
+     * Batched readings arrive late and together, so the sensor timestamp is used when it is
+     * plausible. Sample times never go backwards.
+     */
+    private long getSampleTimeLocked(SensorEvent event) {
+        final long nowNanos = SystemClock.elapsedRealtimeNanos();
+        final long ageNanos = nowNanos - event.timestamp;
+        long time = nowNanos / 1000000;
+        if (mMaxReportLatencyUs > 0 && ageNanos >= 0
+                && ageNanos <= 2L * mMaxReportLatencyUs * 1000) {
+            time = event.timestamp / 1000000;
+        }
+        mLastSampleTime = Math.max(time, mLastSampleTime);
+        return mLastSampleTime;
+    }
+
     public synchronized int getState() {
         return mState;
     }
@@ -158,8 +222,13 @@ public class AmbientLuxObserver {
     private void enableLightSensor(boolean enable) {
         if (enable && !mLightSensorEnabled) {
             mLightSensorEnabled = true;
+            // Let the sensor hub collect readings for up to half a window, so the AP doesn't
+            // wake up for each of them. Transitions are evaluated over a whole window, so
+            // they are not delayed by more than that.
+            mMaxReportLatencyUs = mLightSensor.getFifoMaxEventCount() > 0
+                    ? mThresholdDuration / 2 * 1000 : 0;
             mSensorManager.registerListener(mListener, mLightSensor,
-                    mLightSensorRate * 1000, mLuxHandler);
+                    mLightSensorRate * 1000, mMaxReportLatencyUs, mLuxHandler);
         } else if (!enable && mLightSensorEnabled) {
             mSensorManager.unregisterListener(mListener);
             mLuxHandler.clear();
@@ -167,15 +236,20 @@ public class AmbientLuxObserver {
             mState = LOW;
             mLightSensorEnabled = false;
             mRingBuffer.clear();
+            mRecentLuxIndex = 0;
+            mRecentLuxCount = 0;
+            mLastSampleTime = 0;
         }
     }
 
-    public void dump(PrintWriter pw) {
+    public synchronized void dump(PrintWriter pw) {
         pw.println();
         pw.println("  AmbientLuxObserver State:");
         pw.println("    mLightSensorEnabled=" + mLightSensorEnabled);
         pw.println("    mState=" + mState);
         pw.println("    mAmbientLux=" + mAmbientLux);
+        pw.println("    mFilter=" + mFilter);
+        pw.println("    mMaxReportLatencyUs=" + mMaxReportLatencyUs);
         pw.println("    mRingBuffer=" + mRingBuffer.toString());
     }
 
@@ -184,76 +258,101 @@ public class AmbientLuxObserver {
      * duration sliding window. This is useful for dampening
      * erratic sensors and rolling thru transitional periods
      * smoothly.
+     *
+     * Samples are kept in primitive arrays used as a circular
+     * buffer, so adding one doesn't allocate once the buffer
+     * holds a whole window. Not thread safe, callers lock.
      */
     private static class TimedMovingAverageRingBuffer {
 
-        private final LinkedList<Sample> mRing = new LinkedList<Sample>();
+        private long[] mTimestamps;
+        private float[] mValues;
+        private int mHead = 0;
+        private int mSize = 0;
 
         private final int mPeriod;
 
-        private float mTotal = 0.0f;
+        private double mTotal = 0.0;
 
-        private static class Sample {
-            public final long mTimestamp;
-            public final float mValue;
-            public Sample (long timestamp, float value) {
-                mTimestamp = timestamp;
-                mValue = value;
-            }
-
-            @Override
-            public String toString() {
-                return "(" + mValue + ", " + mTimestamp + ")";
-            }
-        }
-
-        public TimedMovingAverageRingBuffer(int period) {
+        public TimedMovingAverageRingBuffer(int period, int capacity) {
             mPeriod = period;
+            mTimestamps = new long[Math.max(capacity, 2)];
+            mValues = new float[mTimestamps.length];
         }
 
-        public synchronized void add(float sample) {
-            expire();
-            if (sample == 0.0f && mRing.size() == 0) {
+        /**
+         * @param now the current time in the {@link SystemClock#elapsedRealtime()} base
+         */
+        public void add(long now, float sample) {
+            expire(now);
+            if (sample == 0.0f && mSize == 0) {
                 return;
             }
-            mRing.offer(new Sample(System.currentTimeMillis(), sample));
+            if (mSize == mValues.length) {
+                grow();
+            }
+            final int tail = (mHead + mSize) % mValues.length;
+            mTimestamps[tail] = now;
+            mValues[tail] = sample;
+            mSize++;
             mTotal += sample;
         }
 
-        public synchronized int size() {
-            return mRing.size();
+        public int size() {
+            return mSize;
+        }
+
+        public float getAverage(long now) {
+            expire(now);
+            return mSize == 0 ? 0.0f : (float) (mTotal / mSize);
         }
 
-        public synchronized float getAverage() {
-            expire();
-            return mRing.size() == 0 ? 0.0f : (mTotal / mRing.size());
+        public void clear() {
+            mHead = 0;
+            mSize = 0;
+            mTotal = 0.0;
         }
 
-        public synchronized void clear() {
-            mRing.clear();
-            mTotal = 0.0f;
+        private void expire(long now) {
+            while (mSize > 1 && ((now - mTimestamps[mHead]) > mPeriod)) {
+                mTotal -= mValues[mHead];
+                mHead = (mHead + 1) % mValues.length;
+                mSize--;
+            }
+            if (mSize == 1) {
+                // Don't let rounding errors accumulate
+                mTotal = mValues[mHead];
+            }
         }
 
-        private void expire() {
-            long now = System.currentTimeMillis();
-            while (mRing.size() > 1 &&
-                    ((now - mRing.peek().mTimestamp) > mPeriod)) {
-                mTotal -= mRing.pop().mValue;
+        private void grow() {
+            final int capacity = mValues.length * 2;
+            final long[] timestamps = new long[capacity];
+            final float[] values = new float[capacity];
+            for (int i = 0; i < mSize; i++) {
+                final int index = (mHead + i) % mValues.length;
+                timestamps[i] = mTimestamps[index];
+                values[i] = mValues[index];
             }
+            mTimestamps = timestamps;
+            mValues = values;
+            mHead = 0;
         }
 
         @Override
-        public synchronized String toString() {
-            expire();
+        public String toString() {
+            expire(SystemClock.elapsedRealtime());
             StringBuilder sb = new StringBuilder();
-            for (Iterator<Sample> i = mRing.iterator(); i.hasNext();) {
+            for (int i = 0; i < mSize; i++) {
+                final int index = (mHead + i) % mValues.length;
                 if (sb.length() > 0) {
                     sb.append(", ");
                 }
-                sb.append(i.next());
+                sb.append("(").append(mValues[index]).append(", ")
+                        .append(mTimestamps[index]).append(")");
             }
-            return "average=" + getAverage() + " length=" + mRing.size() +
-                   " mRing=[" + sb.toString() + "]";
+            return "average=" + getAverage(SystemClock.elapsedRealtime()) + " length=" + mSize
+                    + " capacity=" + mValues.length + " mRing=[" + sb.toString() + "]";
         }
     }
 }
@@ -15,8 +15,6 @@
  */
 package org.cyanogenmod.platform.internal.display;
 
-import android.animation.ValueAnimator;
-import android.animation.ValueAnimator.AnimatorUpdateListener;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
@@ -24,9 +22,6 @@ import android.text.format.DateUtils;
 import android.util.MathUtils;
 import android.util.Range;
 import android.util.Slog;
-import android.view.animation.LinearInterpolator;
-
-import org.cyanogenmod.platform.internal.display.TwilightTracker.TwilightState;
 
 import java.io.PrintWriter;
 import java.util.BitSet;
@@ -51,6 +46,12 @@ public class ColorTemperatureController extends LiveDisplayFeature {
     private final Range<Integer> mColorTemperatureRange;
     private final double[] mColorBalanceCurve;
 
+    // Color balance or RGB adjustment of each temperature in mColorTemperatureRange, indexed
+    // by the offset from its lower bound. Only the one the device uses is filled in.
+    private final int[] mColorBalanceTable;
+    private final float[] mRgbTable;
+    private final float[] mRgb = new float[3];
+
     private final int mDefaultDayTemperature;
     private final int mDefaultNightTemperature;
 
@@ -58,19 +59,20 @@ public class ColorTemperatureController extends LiveDisplayFeature {
     private int mDayTemperature;
     private int mNightTemperature;
 
-    private ValueAnimator mAnimator;
+    private final DisplayAnimationEngine.Animation mAnimation;
+    private final int[] mCurrentBalance = new int[1];
+    private final int[] mTargetBalance = new int[1];
 
     private final CMHardwareManager mHardware;
 
-    private static final long TWILIGHT_ADJUSTMENT_TIME = DateUtils.HOUR_IN_MILLIS * 1;
-
     private static final Uri DISPLAY_TEMPERATURE_DAY =
             CMSettings.System.getUriFor(CMSettings.System.DISPLAY_TEMPERATURE_DAY);
     private static final Uri DISPLAY_TEMPERATURE_NIGHT =
             CMSettings.System.getUriFor(CMSettings.System.DISPLAY_TEMPERATURE_NIGHT);
 
     public ColorTemperatureController(Context context,
-            Handler handler, DisplayHardwareController displayHardware) {
+            Handler handler, DisplayHardwareController displayHardware,
+            DisplayAnimationEngine engine) {
         super(context, handler);
         mDisplayHardware = displayHardware;
         mHardware = CMHardwareManager.getInstance(mContext);
@@ -97,6 +99,36 @@ public class ColorTemperatureController extends LiveDisplayFeature {
                 mColorTemperatureRange.getLower(),
                 mDefaultDayTemperature,
                 mColorTemperatureRange.getUpper());
+
+        final int lower = mColorTemperatureRange.getLower();
+        final int count = mColorTemperatureRange.getUpper() - lower + 1;
+        if (mUseColorBalance) {
+            mColorBalanceTable = new int[count];
+            for (int i = 0; i < count; i++) {
+                mColorBalanceTable[i] = computeColorBalance(lower + i);
+            }
+            mRgbTable = null;
+            mAnimation = engine.createAnimation(1, new DisplayAnimationEngine.Writer() {
+                @Override
+                public boolean write(int[] values) {
+                    synchronized (ColorTemperatureController.this) {
+                        return isScreenOn() && mHardware.setColorBalance(values[0]);
+                    }
+                }
+            }, false);
+        } else if (mUseTemperatureAdjustment) {
+            mColorBalanceTable = null;
+            mRgbTable = new float[count * 3];
+            for (int i = 0; i < count; i++) {
+                ColorUtils.temperatureToRGB(lower + i, mRgb);
+                System.arraycopy(mRgb, 0, mRgbTable, i * 3, 3);
+            }
+            mAnimation = null;
+        } else {
+            mColorBalanceTable = null;
+            mRgbTable = null;
+            mAnimation = null;
+        }
     }
 
     @Override
@@ -131,8 +163,9 @@ public class ColorTemperatureController extends LiveDisplayFeature {
 
     @Override
     protected void onScreenStateChanged() {
-        if (mAnimator != null && mAnimator.isRunning() && !isScreenOn()) {
-            mAnimator.cancel();
+        if (mAnimation != null && mAnimation.isRunning() && !isScreenOn()) {
+            mAnimation.cancel();
+            mHandler.removeCallbacks(mTransitionRunnable);
         } else {
             updateColorTemperature();
         }
@@ -166,6 +199,19 @@ public class ColorTemperatureController extends LiveDisplayFeature {
         pw.println("    isTransitioning=" + isTransitioning());
     }
 
+    private final TwilightTransitionPlanner mTransitionPlanner =
+            new TwilightTransitionPlanner(new TwilightTransitionPlanner.Quantizer() {
+        @Override
+        public int quantize(int temperature) {
+            // Color balance maps many temperatures to the same value, the RGB adjustment
+            // changes with each of them
+            if (mUseColorBalance && mColorTemperatureRange.contains(temperature)) {
+                return mapColorTemperatureToBalance(temperature);
+            }
+            return temperature;
+        }
+    });
+
     private final Runnable mTransitionRunnable = new Runnable() {
         @Override
         public void run() {
@@ -180,18 +226,20 @@ public class ColorTemperatureController extends LiveDisplayFeature {
     }
 
     private synchronized void updateColorTemperature() {
+        mHandler.removeCallbacks(mTransitionRunnable);
         if (!mUseTemperatureAdjustment || !isScreenOn()) {
             return;
         }
         int temperature = mDayTemperature;
         int mode = getMode();
+        final long now = System.currentTimeMillis();
 
         if (mode == MODE_OFF || isLowPowerMode()) {
             temperature = mDefaultDayTemperature;
         } else if (mode == MODE_NIGHT) {
             temperature = mNightTemperature;
         } else if (mode == MODE_AUTO) {
-            temperature = getTwilightK();
+            temperature = getTwilightK(now);
         }
 
         if (DEBUG) {
@@ -201,10 +249,28 @@ public class ColorTemperatureController extends LiveDisplayFeature {
 
         setDisplayTemperature(temperature);
 
-        if (isTransitioning()) {
-            // fire again in a minute
-            mHandler.postDelayed(mTransitionRunnable, DateUtils.MINUTE_IN_MILLIS);
+        if (mode == MODE_AUTO && !isLowPowerMode()) {
+            scheduleTransitionUpdate(now);
+        }
+    }
+
+    /**
+     * Wake up when the output next changes, but not more than once a minute. The animation
+     * smooths out the steps, and the wakeup is dropped while the screen is off.
+     */
+    private void scheduleTransitionUpdate(long now) {
+        final long next = mTransitionPlanner.getNextChangeTime(getTwilight(), now,
+                mDayTemperature, mNightTemperature);
+        if (next < 0) {
+            // nothing changes until the twilight state is updated
+            return;
+        }
+
+        final long delay = Math.max(next - now, DateUtils.MINUTE_IN_MILLIS);
+        if (DEBUG) {
+            Slog.d(TAG, "scheduleTransitionUpdate delay=" + delay);
         }
+        mHandler.postDelayed(mTransitionRunnable, delay);
     }
 
     /**
@@ -216,6 +282,7 @@ public class ColorTemperatureController extends LiveDisplayFeature {
         int current = mHardware.getColorBalance();
 
         if (current == balance) {
+            mAnimation.cancel();
             return;
         }
 
@@ -227,33 +294,24 @@ public class ColorTemperatureController extends LiveDisplayFeature {
                     " target=" + balance + " duration=" + duration);
         }
 
-        if (mAnimator != null) {
-            mAnimator.cancel();
-            mAnimator.removeAllUpdateListeners();
-        }
+        mCurrentBalance[0] = current;
+        mTargetBalance[0] = balance;
+        mAnimation.start(mCurrentBalance, mTargetBalance, duration);
+    }
 
-        mAnimator = ValueAnimator.ofInt(current, balance);
-        mAnimator.setDuration(duration);
-        mAnimator.setInterpolator(new LinearInterpolator());
-        mAnimator.addUpdateListener(new AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(final ValueAnimator animation) {
-                synchronized (ColorTemperatureController.this) {
-                    if (isScreenOn()) {
-                        int value = (int) animation.getAnimatedValue();
-                        mHardware.setColorBalance(value);
-                    }
-                }
-            }
-        });
-        mAnimator.start();
+    /*
+     * Map the color temperature to a color balance value, looked up in the table computed
+     * at construction. The temperature has to be in mColorTemperatureRange.
+     */
+    private int mapColorTemperatureToBalance(int temperature) {
+        return mColorBalanceTable[temperature - mColorTemperatureRange.getLower()];
     }
 
     /*
      * Map the color temperature to a color balance value using a power curve. This assumes the
      * correct configuration at the device level!
      */
-    private int mapColorTemperatureToBalance(int temperature) {
+    private int computeColorBalance(int temperature) {
         double z = org.cyanogenmod.internal.util.MathUtils.powerCurveToLinear(mColorBalanceCurve, temperature);
         return Math.round(MathUtils.lerp((float)mColorBalanceRange.getLower(),
                 (float)mColorBalanceRange.getUpper(), (float)z));
@@ -274,59 +332,25 @@ public class ColorTemperatureController extends LiveDisplayFeature {
             return;
         }
 
-        final float[] rgb = ColorUtils.temperatureToRGB(temperature);
-        if (mDisplayHardware.setAdditionalAdjustment(rgb)) {
+        // The hardware controller copies the values, so the scratch array can be reused
+        System.arraycopy(mRgbTable, (temperature - mColorTemperatureRange.getLower()) * 3,
+                mRgb, 0, 3);
+        if (mDisplayHardware.setAdditionalAdjustment(mRgb)) {
             if (DEBUG) {
                 Slog.d(TAG, "Adjust display temperature to " + temperature + "K");
             }
         }
     }
 
-    /**
-     * Where is the sun anyway? This calculation determines day or night, and scales
-     * the value around sunset/sunrise for a smooth transition.
-     *
-     * @param now
-     * @param sunset
-     * @param sunrise
-     * @return float between 0 and 1
-     */
-    private static float adj(long now, long sunset, long sunrise) {
-        if (sunset < 0 || sunrise < 0
-                || now < sunset || now > (sunrise + TWILIGHT_ADJUSTMENT_TIME)) {
-            return 1.0f;
-        }
-
-        if (now <= (sunset + TWILIGHT_ADJUSTMENT_TIME)) {
-            return MathUtils.lerp(1.0f, 0.0f,
-                    (float) (now - sunset) / TWILIGHT_ADJUSTMENT_TIME);
-        }
-
-        if (now >= sunrise) {
-            return MathUtils.lerp(1.0f, 0.0f,
-                    (float) ((sunrise + TWILIGHT_ADJUSTMENT_TIME) - now) / TWILIGHT_ADJUSTMENT_TIME);
-        }
-
-        return 0.0f;
-    }
-
     /**
      * Determine the color temperature we should use for the display based on
      * the position of the sun.
      *
      * @return color temperature in Kelvin
      */
-    private int getTwilightK() {
-        float adjustment = 1.0f;
-        final TwilightState twilight = getTwilight();
-
-        if (twilight != null) {
-            final long now = System.currentTimeMillis();
-            adjustment = adj(now, twilight.getYesterdaySunset(), twilight.getTodaySunrise()) *
-                    adj(now, twilight.getTodaySunset(), twilight.getTomorrowSunrise());
-        }
-
-        return (int)MathUtils.lerp(mNightTemperature, mDayTemperature, adjustment);
+    private int getTwilightK(long now) {
+        return TwilightTransitionPlanner.getTemperature(getTwilight(), now,
+                mDayTemperature, mNightTemperature);
     }
 
     int getDefaultDayTemperature() {
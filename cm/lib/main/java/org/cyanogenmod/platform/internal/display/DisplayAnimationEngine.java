@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.platform.internal.display;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.util.Slog;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Drives the transitions of LiveDisplay hardware values on the LiveDisplay handler.
+ *
+ * All running transitions advance together, at most config_liveDisplayAnimationRate times
+ * per second. A value is only written when its quantized value changed since the last write,
+ * and SurfaceFlinger is asked to repaint once per step for all the writes needing it.
+ */
+final class DisplayAnimationEngine {
+
+    private static final String TAG = "LiveDisplay";
+
+    /**
+     * Writes values to the hardware. Called on the LiveDisplay handler, without holding any
+     * lock of the engine.
+     */
+    interface Writer {
+        /**
+         * @param values the values to write, the array is reused for the next step
+         * @return whether the values were written to the hardware
+         */
+        boolean write(int[] values);
+    }
+
+    /**
+     * A linear transition of a fixed number of integer values.
+     */
+    final class Animation {
+        private final Writer mWriter;
+        private final boolean mNeedsRefresh;
+
+        // Guarded by the engine
+        private final int[] mFrom;
+        private final int[] mTo;
+        private final int[] mWritten;
+        private long mStartTime;
+        private long mDuration;
+        private boolean mRunning;
+
+        // Only used on the handler thread
+        private final int[] mValues;
+        private boolean mPending;
+
+        private Animation(int count, Writer writer, boolean needsRefresh) {
+            mWriter = writer;
+            mNeedsRefresh = needsRefresh;
+            mFrom = new int[count];
+            mTo = new int[count];
+            mWritten = new int[count];
+            mValues = new int[count];
+        }
+
+        /**
+         * Starts a transition, replacing the one running, if any.
+         * @param from the values in the hardware, to start from
+         * @param to the values to end at
+         * @param duration the duration of the transition, in milliseconds
+         */
+        void start(int[] from, int[] to, long duration) {
+            synchronized (DisplayAnimationEngine.this) {
+                System.arraycopy(from, 0, mFrom, 0, mFrom.length);
+                System.arraycopy(to, 0, mTo, 0, mTo.length);
+                // The hardware already holds these, there is no need to write them again
+                System.arraycopy(from, 0, mWritten, 0, mWritten.length);
+                mStartTime = SystemClock.uptimeMillis();
+                mDuration = Math.max(duration, 0);
+                if (!mRunning) {
+                    mRunning = true;
+                    mAnimations.add(this);
+                }
+                scheduleStepLocked(mStartTime);
+            }
+        }
+
+        void cancel() {
+            synchronized (DisplayAnimationEngine.this) {
+                if (mRunning) {
+                    mRunning = false;
+                    mAnimations.remove(this);
+                }
+            }
+        }
+
+        boolean isRunning() {
+            synchronized (DisplayAnimationEngine.this) {
+                return mRunning;
+            }
+        }
+
+        /**
+         * Computes the values at the given time, and whether they differ from the ones
+         * written last.
+         * @return whether the transition is complete
+         */
+        private boolean computeLocked(long now) {
+            final float fraction = mDuration == 0 ? 1.0f
+                    : Math.min(1.0f, (float) (now - mStartTime) / mDuration);
+            for (int i = 0; i < mValues.length; i++) {
+                mValues[i] = mFrom[i] + Math.round((mTo[i] - mFrom[i]) * fraction);
+            }
+            mPending = !Arrays.equals(mValues, mWritten);
+            if (mPending) {
+                System.arraycopy(mValues, 0, mWritten, 0, mWritten.length);
+                mWrites++;
+            } else {
+                mSkippedWrites++;
+            }
+            return fraction >= 1.0f;
+        }
+    }
+
+    private final Handler mHandler;
+    private final long mStepInterval;
+
+    // Guarded by this
+    private final ArrayList<Animation> mAnimations = new ArrayList<Animation>();
+    private boolean mStepScheduled;
+    private long mNextStepTime;
+    private long mWrites;
+    private long mSkippedWrites;
+
+    // Only used on the handler thread
+    private final ArrayList<Animation> mStepping = new ArrayList<Animation>();
+    private long mRefreshes;
+
+    private final Runnable mStepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            step();
+        }
+    };
+
+    DisplayAnimationEngine(Context context, Handler handler) {
+        mHandler = handler;
+        final int rate = context.getResources().getInteger(
+                org.cyanogenmod.platform.internal.R.integer.config_liveDisplayAnimationRate);
+        mStepInterval = 1000 / Math.max(rate, 1);
+    }
+
+    /**
+     * Creates an animation of the given number of values.
+     * @param needsRefresh whether SurfaceFlinger has to repaint for writes to take effect
+     */
+    Animation createAnimation(int count, Writer writer, boolean needsRefresh) {
+        return new Animation(count, writer, needsRefresh);
+    }
+
+    private void scheduleStepLocked(long now) {
+        if (mStepScheduled) {
+            return;
+        }
+        mStepScheduled = true;
+        // Keep the pace across restarts, so they don't add steps
+        mNextStepTime = Math.max(now, mNextStepTime);
+        mHandler.postAtTime(mStepRunnable, mNextStepTime);
+    }
+
+    private void step() {
+        final long now = SystemClock.uptimeMillis();
+        synchronized (this) {
+            mStepScheduled = false;
+            mNextStepTime = now + mStepInterval;
+            for (int i = mAnimations.size() - 1; i >= 0; i--) {
+                final Animation animation = mAnimations.get(i);
+                if (animation.computeLocked(now)) {
+                    animation.mRunning = false;
+                    mAnimations.remove(i);
+                }
+                if (animation.mPending) {
+                    mStepping.add(animation);
+                }
+            }
+            if (!mAnimations.isEmpty()) {
+                scheduleStepLocked(mNextStepTime);
+            }
+        }
+
+        // Written without the lock, the writers take their own
+        boolean refresh = false;
+        for (int i = 0; i < mStepping.size(); i++) {
+            final Animation animation = mStepping.get(i);
+            // Nothing to repaint for writes skipped, e.g. with the screen off
+            if (animation.mWriter.write(animation.mValues)) {
+                refresh |= animation.mNeedsRefresh;
+            }
+        }
+        mStepping.clear();
+
+        if (refresh) {
+            screenRefresh();
+        }
+    }
+
+    /**
+     * Tell SurfaceFlinger to repaint the screen. This is called after updating
+     * hardware registers for display calibration to have an immediate effect.
+     */
+    private void screenRefresh() {
+        mRefreshes++;
+        try {
+            final IBinder flinger = ServiceManager.getService("SurfaceFlinger");
+            if (flinger != null) {
+                final Parcel data = Parcel.obtain();
+                data.writeInterfaceToken("android.ui.ISurfaceComposer");
+                flinger.transact(1004, data, null, 0);
+                data.recycle();
+            }
+        } catch (RemoteException ex) {
+            Slog.e(TAG, "Failed to refresh screen", ex);
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println();
+        pw.println("  DisplayAnimationEngine State:");
+        synchronized (this) {
+            pw.println("    stepInterval=" + mStepInterval + "ms running=" + mAnimations.size());
+            pw.println("    writes=" + mWrites + " skippedWrites=" + mSkippedWrites
+                    + " refreshes=" + mRefreshes);
+        }
+    }
+}
@@ -15,19 +15,11 @@
  */
 package org.cyanogenmod.platform.internal.display;
 
-import android.animation.FloatArrayEvaluator;
-import android.animation.ValueAnimator;
-import android.animation.ValueAnimator.AnimatorUpdateListener;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.IBinder;
-import android.os.Parcel;
-import android.os.RemoteException;
-import android.os.ServiceManager;
 import android.util.MathUtils;
 import android.util.Slog;
-import android.view.animation.LinearInterpolator;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -58,7 +50,9 @@ public class DisplayHardwareController extends LiveDisplayFeature {
     private final float[] mAdditionalAdjustment = getDefaultAdjustment();
     private final float[] mColorAdjustment = getDefaultAdjustment();
 
-    private ValueAnimator mAnimator;
+    private final DisplayAnimationEngine.Animation mAnimation;
+    private final int[] mCurrentColor = new int[3];
+    private final int[] mTargetColor = new int[3];
 
     private final int mMaxColor;
 
@@ -72,7 +66,8 @@ public class DisplayHardwareController extends LiveDisplayFeature {
     private static final Uri DISPLAY_CABC =
             CMSettings.System.getUriFor(CMSettings.System.DISPLAY_CABC);
 
-    public DisplayHardwareController(Context context, Handler handler) {
+    public DisplayHardwareController(Context context, Handler handler,
+            DisplayAnimationEngine engine) {
         super(context, handler);
 
         mHardware = CMHardwareManager.getInstance(mContext);
@@ -100,8 +95,17 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         if (mUseColorAdjustment) {
             mMaxColor = mHardware.getDisplayColorCalibrationMax();
             copyColors(getColorAdjustment(), mColorAdjustment);
+            mAnimation = engine.createAnimation(3, new DisplayAnimationEngine.Writer() {
+                @Override
+                public boolean write(int[] values) {
+                    synchronized (DisplayHardwareController.this) {
+                        return isScreenOn() && mHardware.setDisplayColorCalibration(values);
+                    }
+                }
+            }, true);
         } else {
             mMaxColor = 0;
+            mAnimation = null;
         }
     }
 
@@ -183,8 +187,8 @@ public class DisplayHardwareController extends LiveDisplayFeature {
     @Override
     protected synchronized void onScreenStateChanged() {
         if (mUseColorAdjustment) {
-            if (mAnimator != null && mAnimator.isRunning() && !isScreenOn()) {
-                mAnimator.cancel();
+            if (mAnimation != null && mAnimation.isRunning() && !isScreenOn()) {
+                mAnimation.cancel();
             } else if (isScreenOn()) {
                 updateColorAdjustment();
             }
@@ -273,72 +277,28 @@ public class DisplayHardwareController extends LiveDisplayFeature {
 
         // always start with the current values in the hardware
         int[] currentInts = mHardware.getDisplayColorCalibration();
-        float[] currentColors = new float[] {
-                (float)currentInts[0] / (float)mMaxColor,
-                (float)currentInts[1] / (float)mMaxColor,
-                (float)currentInts[2] / (float)mMaxColor };
-
-        if (currentColors[0] == targetColors[0] &&
-                currentColors[1] == targetColors[1] &&
-                currentColors[2] == targetColors[2]) {
+        for (int i = 0; i < 3; i++) {
+            mCurrentColor[i] = currentInts[i];
+            mTargetColor[i] = (int) (targetColors[i] * mMaxColor);
+        }
+
+        if (Arrays.equals(mCurrentColor, mTargetColor)) {
+            mAnimation.cancel();
             return;
         }
 
         // max 500 ms, scaled vs. the largest delta
-        long duration = (long)(750 * (Math.max(Math.max(
-                Math.abs(currentColors[0] - targetColors[0]),
-                Math.abs(currentColors[1] - targetColors[1])),
-                Math.abs(currentColors[2] - targetColors[2]))));
+        long duration = (long)(750 * (float) Math.max(Math.max(
+                Math.abs(mCurrentColor[0] - mTargetColor[0]),
+                Math.abs(mCurrentColor[1] - mTargetColor[1])),
+                Math.abs(mCurrentColor[2] - mTargetColor[2])) / (float) mMaxColor);
 
         if (DEBUG) {
-            Slog.d(TAG, "animateDisplayColor current=" + Arrays.toString(currentColors) +
-                    " targetColors=" + Arrays.toString(targetColors) + " duration=" + duration);
-        }
-
-        if (mAnimator != null) {
-            mAnimator.cancel();
-            mAnimator.removeAllUpdateListeners();
-        }
-
-        mAnimator = ValueAnimator.ofObject(
-                new FloatArrayEvaluator(new float[3]), currentColors, targetColors);
-        mAnimator.setDuration(duration);
-        mAnimator.setInterpolator(new LinearInterpolator());
-        mAnimator.addUpdateListener(new AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(final ValueAnimator animation) {
-                synchronized (DisplayHardwareController.this) {
-                    if (isScreenOn()) {
-                        float[] value = (float[]) animation.getAnimatedValue();
-                        mHardware.setDisplayColorCalibration(new int[] {
-                                (int) (value[0] * mMaxColor),
-                                (int) (value[1] * mMaxColor),
-                                (int) (value[2] * mMaxColor)
-                        });
-                        screenRefresh();
-                    }
-                }
-            }
-        });
-        mAnimator.start();
-    }
-
-    /**
-     * Tell SurfaceFlinger to repaint the screen. This is called after updating
-     * hardware registers for display calibration to have an immediate effect.
-     */
-    private void screenRefresh() {
-        try {
-            final IBinder flinger = ServiceManager.getService("SurfaceFlinger");
-            if (flinger != null) {
-                final Parcel data = Parcel.obtain();
-                data.writeInterfaceToken("android.ui.ISurfaceComposer");
-                flinger.transact(1004, data, null, 0);
-                data.recycle();
-            }
-        } catch (RemoteException ex) {
-            Slog.e(TAG, "Failed to refresh screen", ex);
+            Slog.d(TAG, "animateDisplayColor current=" + Arrays.toString(mCurrentColor) +
+                    " targetColors=" + Arrays.toString(mTargetColor) + " duration=" + duration);
         }
+
+        mAnimation.start(mCurrentColor, mTargetColor, duration);
     }
 
     /**
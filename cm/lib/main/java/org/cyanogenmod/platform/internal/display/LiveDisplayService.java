@@ -101,6 +101,8 @@ public class LiveDisplayService extends CMSystemService {
     private OutdoorModeController mOMC;
     private PictureAdjustmentController mPAC;
 
+    private DisplayAnimationEngine mAnimationEngine;
+
     private LiveDisplayConfig mConfig;
 
     // QS tile
@@ -170,10 +172,13 @@ public class LiveDisplayService extends CMSystemService {
 
             mAwaitingNudge = getSunsetCounter() < 1;
 
-            mDHC = new DisplayHardwareController(mContext, mHandler);
+            mAnimationEngine = new DisplayAnimationEngine(mContext, mHandler);
+
+            mDHC = new DisplayHardwareController(mContext, mHandler, mAnimationEngine);
             mFeatures.add(mDHC);
 
-            mCTC = new ColorTemperatureController(mContext, mHandler, mDHC);
+            mCTC = new ColorTemperatureController(mContext, mHandler, mDHC,
+                    mAnimationEngine);
             mFeatures.add(mCTC);
 
             mOMC = new OutdoorModeController(mContext, mHandler);
@@ -499,6 +504,10 @@ public class LiveDisplayService extends CMSystemService {
             for (int i = 0; i < mFeatures.size(); i++) {
                 mFeatures.get(i).dump(pw);
             }
+
+            if (mAnimationEngine != null) {
+                mAnimationEngine.dump(pw);
+            }
         }
     };
 
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2018 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cyanogenmod.platform.internal.display;
+
+import android.text.format.DateUtils;
+import android.util.MathUtils;
+
+import org.cyanogenmod.platform.internal.display.TwilightTracker.TwilightState;
+
+import java.util.Arrays;
+
+/**
+ * Computes the color temperature of the automatic mode along the day, and when it next
+ * changes the output of the display.
+ *
+ * The temperature ramps linearly from the day to the night temperature during the hour
+ * following sunset, and back during the hour following sunrise. Between the ends of these
+ * ramps it is monotonic, so the next change is found by a binary search instead of polling.
+ */
+final class TwilightTransitionPlanner {
+
+    private static final long TWILIGHT_ADJUSTMENT_TIME = DateUtils.HOUR_IN_MILLIS * 1;
+
+    // Precision of the change times
+    private static final long RESOLUTION = DateUtils.SECOND_IN_MILLIS;
+
+    /**
+     * Maps a color temperature to the value the hardware is programmed with. Temperatures
+     * mapping to the same value don't need an update.
+     */
+    interface Quantizer {
+        int quantize(int temperature);
+    }
+
+    private final Quantizer mQuantizer;
+
+    // Ends of the ramps, reused between calls
+    private final long[] mBoundaries = new long[8];
+
+    TwilightTransitionPlanner(Quantizer quantizer) {
+        mQuantizer = quantizer;
+    }
+
+    /**
+     * Determine the color temperature we should use for the display based on
+     * the position of the sun.
+     *
+     * @param twilight the twilight state, or null if unknown
+     * @param now the time in the System.currentTimeMillis() timebase
+     * @return color temperature in Kelvin
+     */
+    static int getTemperature(TwilightState twilight, long now,
+            int dayTemperature, int nightTemperature) {
+        float adjustment = 1.0f;
+
+        if (twilight != null) {
+            adjustment = adj(now, twilight.getYesterdaySunset(), twilight.getTodaySunrise()) *
+                    adj(now, twilight.getTodaySunset(), twilight.getTomorrowSunrise());
+        }
+
+        return (int)MathUtils.lerp(nightTemperature, dayTemperature, adjustment);
+    }
+
+    /**
+     * Finds the first time after now at which the quantized temperature differs from the
+     * one at now.
+     *
+     * @param twilight the twilight state, or null if unknown
+     * @param now the time in the System.currentTimeMillis() timebase
+     * @return the time of the change in the same timebase, or -1 if there is none until
+     *         the twilight state is updated
+     */
+    long getNextChangeTime(TwilightState twilight, long now,
+            int dayTemperature, int nightTemperature) {
+        if (twilight == null || dayTemperature == nightTemperature) {
+            return -1;
+        }
+
+        final int count = collectBoundaries(twilight);
+        final int current = quantize(twilight, now, dayTemperature, nightTemperature);
+
+        long start = now;
+        for (int i = 0; i < count; i++) {
+            long end = mBoundaries[i];
+            if (end <= start) {
+                continue;
+            }
+            if (quantize(twilight, end, dayTemperature, nightTemperature) != current) {
+                // The curve is monotonic up to this boundary, search for the change
+                while (end - start > RESOLUTION) {
+                    final long middle = start + (end - start) / 2;
+                    if (quantize(twilight, middle, dayTemperature, nightTemperature)
+                            != current) {
+                        end = middle;
+                    } else {
+                        start = middle;
+                    }
+                }
+                return end;
+            }
+            start = end;
+        }
+        return -1;
+    }
+
+    private int quantize(TwilightState twilight, long now,
+            int dayTemperature, int nightTemperature) {
+        return mQuantizer.quantize(
+                getTemperature(twilight, now, dayTemperature, nightTemperature));
+    }
+
+    /**
+     * Fills mBoundaries with the ends of the ramps, in chronological order.
+     * @return the number of boundaries
+     */
+    private int collectBoundaries(TwilightState twilight) {
+        int count = 0;
+        count = addRamp(count, twilight.getYesterdaySunset());
+        count = addRamp(count, twilight.getTodaySunrise());
+        count = addRamp(count, twilight.getTodaySunset());
+        count = addRamp(count, twilight.getTomorrowSunrise());
+        Arrays.sort(mBoundaries, 0, count);
+        return count;
+    }
+
+    private int addRamp(int count, long start) {
+        if (start < 0) {
+            return count;
+        }
+        mBoundaries[count++] = start;
+        mBoundaries[count++] = start + TWILIGHT_ADJUSTMENT_TIME;
+        return count;
+    }
+
+    /**
+     * Where is the sun anyway? This calculation determines day or night, and scales
+     * the value around sunset/sunrise for a smooth transition.
+     *
+     * @param now
+     * @param sunset
+     * @param sunrise
+     * @return float between 0 and 1
+     */
+    private static float adj(long now, long sunset, long sunrise) {
+        if (sunset < 0 || sunrise < 0
+                || now < sunset || now > (sunrise + TWILIGHT_ADJUSTMENT_TIME)) {
+            return 1.0f;
+        }
+
+        if (now <= (sunset + TWILIGHT_ADJUSTMENT_TIME)) {
+            return MathUtils.lerp(1.0f, 0.0f,
+                    (float) (now - sunset) / TWILIGHT_ADJUSTMENT_TIME);
+        }
+
+        if (now >= sunrise) {
+            return MathUtils.lerp(1.0f, 0.0f,
+                    (float) ((sunrise + TWILIGHT_ADJUSTMENT_TIME) - now)
+                            / TWILIGHT_ADJUSTMENT_TIME);
+        }
+
+        return 0.0f;
+    }
+}
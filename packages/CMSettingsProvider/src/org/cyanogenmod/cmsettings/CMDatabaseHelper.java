@@ -32,6 +32,7 @@ import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import cyanogenmod.providers.CMSettings;
@@ -67,12 +68,22 @@ public class CMDatabaseHelper extends SQLiteOpenHelper{
 
     private static final String DROP_INDEX_SQL_FORMAT = "DROP INDEX IF EXISTS %sIndex%d;";
 
+    private static final String UPSERT_SQL_FORMAT =
+            "INSERT OR REPLACE INTO %s(name,value) VALUES(?,?);";
+
+    private static final String DELETE_SQL_FORMAT = "DELETE FROM %s WHERE name=?;";
+
     private static final String MCC_PROP_NAME = "ro.prebundled.mcc";
 
     private Context mContext;
     private int mUserHandle;
     private String mPublicSrcDir;
 
+    // Compiled single key statements by sql. Statements hold bindings, so these must only be
+    // used from a single thread: the provider's writer thread.
+    private final ArrayMap<String, SQLiteStatement> mStatements =
+            new ArrayMap<String, SQLiteStatement>();
+
     /**
      * Gets the appropriate database path for a specific user
      * @param userId The database path for this user
@@ -101,6 +112,9 @@ public class CMDatabaseHelper extends SQLiteOpenHelper{
         mContext = context;
         mUserHandle = userId;
 
+        // Let readers proceed while the writer thread commits
+        setWriteAheadLoggingEnabled(true);
+
         try {
             String packageName = mContext.getPackageName();
             mPublicSrcDir = mContext.getPackageManager().getApplicationInfo(packageName, 0)
@@ -294,6 +308,35 @@ public class CMDatabaseHelper extends SQLiteOpenHelper{
         }
     }
 
+    /**
+     * Gets the compiled statement inserting or replacing a single name/value pair. Bind the name
+     * to index 1 and the value to index 2. Only to be used from the provider's writer thread.
+     * @param tableName The name of the table to insert into.
+     * @return The compiled statement.
+     */
+    SQLiteStatement getUpsertStatement(String tableName) {
+        return getStatement(String.format(UPSERT_SQL_FORMAT, tableName));
+    }
+
+    /**
+     * Gets the compiled statement deleting a single name/value pair. Bind the name to index 1.
+     * Only to be used from the provider's writer thread.
+     * @param tableName The name of the table to delete from.
+     * @return The compiled statement.
+     */
+    SQLiteStatement getDeleteStatement(String tableName) {
+        return getStatement(String.format(DELETE_SQL_FORMAT, tableName));
+    }
+
+    private SQLiteStatement getStatement(String sql) {
+        SQLiteStatement stmt = mStatements.get(sql);
+        if (stmt == null) {
+            stmt = getWritableDatabase().compileStatement(sql);
+            mStatements.put(sql, stmt);
+        }
+        return stmt;
+    }
+
     private void moveSettingsToNewTable(SQLiteDatabase db,
                                         String sourceTable, String destTable,
                                         String[] settingsToMove, boolean doIgnore) {
@@ -31,17 +31,24 @@ import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
 import android.database.AbstractCursor;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Bundle;
-import android.os.SystemProperties;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PatternMatcher;
+import android.os.Process;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -50,10 +57,16 @@ import org.cyanogenmod.internal.util.QSUtils;
 
 import cyanogenmod.providers.CMSettings;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The CMSettingsProvider serves as a {@link ContentProvider} for CM specific settings
@@ -65,11 +78,18 @@ public class CMSettingsProvider extends ContentProvider {
     private static final boolean USER_CHECK_THROWS = true;
 
     public static final String PREF_HAS_MIGRATED_CM_SETTINGS = "has_migrated_cm13_settings";
+    // Set once the migration for existing users started, so an interrupted one is resumed
+    private static final String PREF_MIGRATION_STARTED = "cm13_settings_migration_started";
+    // Checkpoint set once a table of a user is migrated
+    private static final String PREF_MIGRATED_TABLE_FORMAT = "has_migrated_cm13_%s_for_user_%d";
 
     private static final Bundle NULL_SETTING = Bundle.forPair("value", null);
 
     // Each defined user has their own settings
     protected final SparseArray<CMDatabaseHelper> mDbHelpers = new SparseArray<CMDatabaseHelper>();
+    // ...mirrored in memory, with writes performed behind the callers' back on mWriteThread
+    private final SparseArray<SettingsMemoryStore> mMemoryStores =
+            new SparseArray<SettingsMemoryStore>();
 
     private static final int SYSTEM = 1;
     private static final int SECURE = 2;
@@ -84,6 +104,12 @@ public class CMSettingsProvider extends ContentProvider {
 
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
+    // The keys migrated from each legacy Settings table, by CM table name
+    private static final ArrayMap<String, String[]> sLegacySettings =
+            new ArrayMap<String, String[]>(3);
+    private static final ArrayMap<String, ArraySet<String>> sLegacySettingKeys =
+            new ArrayMap<String, ArraySet<String>>(3);
+
     static {
         sUriMatcher.addURI(CMSettings.AUTHORITY, CMDatabaseHelper.CMTableNames.TABLE_SYSTEM,
                 SYSTEM);
@@ -97,11 +123,49 @@ public class CMSettingsProvider extends ContentProvider {
                 ITEM_MATCHER, SECURE_ITEM_NAME);
         sUriMatcher.addURI(CMSettings.AUTHORITY, CMDatabaseHelper.CMTableNames.TABLE_GLOBAL +
                 ITEM_MATCHER, GLOBAL_ITEM_NAME);
+
+        sLegacySettings.put(CMDatabaseHelper.CMTableNames.TABLE_SYSTEM,
+                CMSettings.System.LEGACY_SYSTEM_SETTINGS);
+        sLegacySettings.put(CMDatabaseHelper.CMTableNames.TABLE_SECURE,
+                CMSettings.Secure.LEGACY_SECURE_SETTINGS);
+        sLegacySettings.put(CMDatabaseHelper.CMTableNames.TABLE_GLOBAL,
+                CMSettings.Global.LEGACY_GLOBAL_SETTINGS);
+        for (int i = 0; i < sLegacySettings.size(); i++) {
+            sLegacySettingKeys.put(sLegacySettings.keyAt(i),
+                    new ArraySet<String>(Arrays.asList(sLegacySettings.valueAt(i))));
+        }
     }
 
     private UserManager mUserManager;
     private Uri.Builder mUriBuilder;
     private SharedPreferences mSharedPrefs;
+    private HandlerThread mWriteThread;
+    private Handler mWriteHandler;
+    private SettingsNotifier mNotifier;
+
+    private final Object mMigrationLock = new Object();
+    // Tables of each user still waiting for the background migration, each mapped to the keys
+    // written to it since the migration started. Guarded by itself.
+    private final SparseArray<ArrayMap<String, ArraySet<String>>> mPendingMigrations =
+            new SparseArray<ArrayMap<String, ArraySet<String>>>();
+    private volatile boolean mHasPendingMigrations;
+
+    // Migration state, kept in memory so call() needs no PackageManager round trip
+    private static final int MIGRATION_STATE_PENDING = 0;
+    // Not migrated yet, no migration running, and the PreBootReceiver disabled; it is
+    // re-enabled on the next call
+    private static final int MIGRATION_STATE_RECEIVER_DISABLED = 1;
+    private static final int MIGRATION_STATE_DONE = 2;
+    private volatile int mMigrationState = MIGRATION_STATE_PENDING;
+    private ComponentName mPreBootReceiver;
+
+    // Which keys changed at which table version, so clients only evict what went stale
+    private final SettingsChangeLog mSystemChangeLog =
+            new SettingsChangeLog(CMSettings.System.SYS_PROP_CM_SETTING_VERSION);
+    private final SettingsChangeLog mSecureChangeLog =
+            new SettingsChangeLog(CMSettings.Secure.SYS_PROP_CM_SETTING_VERSION);
+    private final SettingsChangeLog mGlobalChangeLog =
+            new SettingsChangeLog(CMSettings.Global.SYS_PROP_CM_SETTING_VERSION);
 
     @Override
     public boolean onCreate() {
@@ -109,6 +173,15 @@ public class CMSettingsProvider extends ContentProvider {
 
         mUserManager = UserManager.get(getContext());
 
+        // Binder callers block on this thread for durable writes, queries and table loads, so
+        // it must not run in the background cgroup
+        mWriteThread = new HandlerThread(TAG + "Writer", Process.THREAD_PRIORITY_FOREGROUND);
+        mWriteThread.start();
+        mWriteHandler = new Handler(mWriteThread.getLooper());
+
+        mNotifier = new SettingsNotifier(getContext().getContentResolver(),
+                new Handler(getContext().getMainLooper()));
+
         establishDbTracking(UserHandle.USER_OWNER);
 
         mUriBuilder = new Uri.Builder();
@@ -117,6 +190,15 @@ public class CMSettingsProvider extends ContentProvider {
 
         mSharedPrefs = getContext().getSharedPreferences(TAG, Context.MODE_PRIVATE);
 
+        mPreBootReceiver = new ComponentName(getContext(), PreBootReceiver.class);
+        updateMigrationState();
+
+        // Resume a migration that was interrupted, e.g. by a reboot
+        if (mSharedPrefs.getBoolean(PREF_MIGRATION_STARTED, false)
+                && !mSharedPrefs.getBoolean(PREF_HAS_MIGRATED_CM_SETTINGS, false)) {
+            scheduleMigrationForExistingUsers();
+        }
+
         IntentFilter userFilter = new IntentFilter();
         userFilter.addAction(Intent.ACTION_USER_REMOVED);
         getContext().registerReceiver(new BroadcastReceiver() {
@@ -134,39 +216,295 @@ public class CMSettingsProvider extends ContentProvider {
             }
         }, userFilter);
 
+        // Track the PreBootReceiver's enabled state instead of querying it on every call
+        IntentFilter packageFilter = new IntentFilter(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        packageFilter.addDataSchemeSpecificPart(getContext().getPackageName(),
+                PatternMatcher.PATTERN_LITERAL);
+        getContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (LOCAL_LOGV) Log.d(TAG, "Received intent: " + intent.getAction());
+
+                updateMigrationState();
+            }
+        }, packageFilter);
+
         return true;
     }
 
     // region Migration Methods
 
     /**
-     * Migrates CM settings for all existing users if this has not been run before.
+     * Migrates CM settings for all existing users if this has not been run before. The
+     * migration runs in the background, one job per user, and this returns right away.
      */
     private void migrateCMSettingsForExistingUsersIfNeeded() {
         boolean hasMigratedCMSettings = mSharedPrefs.getBoolean(PREF_HAS_MIGRATED_CM_SETTINGS,
                 false);
 
         if (!hasMigratedCMSettings) {
-            long startTime = System.currentTimeMillis();
+            mSharedPrefs.edit().putBoolean(PREF_MIGRATION_STARTED, true).commit();
+            scheduleMigrationForExistingUsers();
+        }
+    }
+
+    /**
+     * Brings the in-memory migration state in line with the migration pref and the enabled
+     * state of the PreBootReceiver. The PreBootReceiver disables itself as soon as it started
+     * the background migration, so a disabled receiver only means the migration has to be
+     * retried when none is running.
+     */
+    private void updateMigrationState() {
+        if (mSharedPrefs.getBoolean(PREF_HAS_MIGRATED_CM_SETTINGS, false)) {
+            mMigrationState = MIGRATION_STATE_DONE;
+            return;
+        }
 
-            for (UserInfo user : mUserManager.getUsers()) {
-                migrateCMSettingsForUser(user.id);
+        final int enabledState = getContext().getPackageManager()
+                .getComponentEnabledSetting(mPreBootReceiver);
+        synchronized (mMigrationLock) {
+            if (mMigrationState != MIGRATION_STATE_DONE) {
+                mMigrationState = enabledState == PackageManager.COMPONENT_ENABLED_STATE_DISABLED
+                        && !mHasPendingMigrations
+                        ? MIGRATION_STATE_RECEIVER_DISABLED : MIGRATION_STATE_PENDING;
             }
+        }
+        if (LOCAL_LOGV) Log.d(TAG, "Migration state: " + mMigrationState);
+    }
 
-            mSharedPrefs.edit().putBoolean(PREF_HAS_MIGRATED_CM_SETTINGS, true).commit();
+    /**
+     * Re-enables the PreBootReceiver, so a migration that has not finished is retried on the
+     * next boot.
+     */
+    private void enablePreBootReceiver() {
+        synchronized (mMigrationLock) {
+            if (mMigrationState != MIGRATION_STATE_RECEIVER_DISABLED) {
+                return;
+            }
+            mMigrationState = MIGRATION_STATE_PENDING;
+        }
 
-            // TODO: Add this as part of a boot message to the UI
-            long timeDiffMillis = System.currentTimeMillis() - startTime;
-            if (LOCAL_LOGV) Log.d(TAG, "Migration finished in " + timeDiffMillis + " milliseconds");
+        if (LOCAL_LOGV) {
+            Log.d(TAG, "Reenabling component preboot receiver");
+        }
+        final long token = Binder.clearCallingIdentity();
+        try {
+            getContext().getPackageManager().setComponentEnabledSetting(mPreBootReceiver,
+                    PackageManager.COMPONENT_ENABLED_STATE_ENABLED,
+                    PackageManager.DONT_KILL_APP);
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+    }
+
+    /**
+     * Disables the PreBootReceiver once the migration finished, in case it was re-enabled
+     * while the migration was running.
+     */
+    private void disablePreBootReceiver() {
+        final PackageManager pm = getContext().getPackageManager();
+        if (pm.getComponentEnabledSetting(mPreBootReceiver)
+                != PackageManager.COMPONENT_ENABLED_STATE_DISABLED) {
+            if (LOCAL_LOGV) Log.d(TAG, "Disabling component preboot receiver");
+            pm.setComponentEnabledSetting(mPreBootReceiver,
+                    PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                    PackageManager.DONT_KILL_APP);
+        }
+    }
+
+    /**
+     * Starts a background migration job for every existing user. Tables that were migrated by
+     * an earlier, interrupted run are skipped.
+     */
+    private void scheduleMigrationForExistingUsers() {
+        final List<UserInfo> users = mUserManager.getUsers();
+        final long startTime = System.currentTimeMillis();
+        final AtomicInteger remainingUsers = new AtomicInteger(users.size());
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        synchronized (mPendingMigrations) {
+            if (mHasPendingMigrations) {
+                // Already running
+                return;
+            }
+            for (UserInfo user : users) {
+                ArrayMap<String, ArraySet<String>> tables =
+                        new ArrayMap<String, ArraySet<String>>(sLegacySettings.size());
+                for (String tableName : sLegacySettings.keySet()) {
+                    // Global settings are shared; migrating them once for the owner is enough
+                    if (CMDatabaseHelper.CMTableNames.TABLE_GLOBAL.equals(tableName)
+                            && user.id != UserHandle.USER_OWNER) {
+                        continue;
+                    }
+                    if (!mSharedPrefs.getBoolean(getMigrationCheckpointKey(user.id, tableName),
+                            false)) {
+                        tables.put(tableName, new ArraySet<String>());
+                    }
+                }
+                if (!tables.isEmpty()) {
+                    mPendingMigrations.put(user.id, tables);
+                }
+            }
+            mHasPendingMigrations = mPendingMigrations.size() > 0;
+        }
+
+        for (final UserInfo user : users) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!migratePendingTablesForUser(user.id)) {
+                        failed.set(true);
+                    }
+
+                    if (remainingUsers.decrementAndGet() == 0) {
+                        if (failed.get()) {
+                            // Tables that failed keep their checkpoint unset, and are retried
+                            // on the next boot
+                            Log.w(TAG, "Migration did not complete, will retry on next boot");
+                            return;
+                        }
+                        mSharedPrefs.edit().putBoolean(PREF_HAS_MIGRATED_CM_SETTINGS, true)
+                                .commit();
+                        mMigrationState = MIGRATION_STATE_DONE;
+                        disablePreBootReceiver();
+
+                        // TODO: Add this as part of a boot message to the UI
+                        long timeDiffMillis = System.currentTimeMillis() - startTime;
+                        if (LOCAL_LOGV) Log.d(TAG, "Migration finished in " + timeDiffMillis
+                                + " milliseconds");
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Migrates the tables of a user still waiting for migration, recording a checkpoint after
+     * each table so an interrupted migration resumes where it stopped. A table failing to
+     * migrate is left without checkpoint, and stops being read from its legacy table.
+     * @param userId The id of the user to run CM settings migration for.
+     * @return Whether all the tables were migrated.
+     */
+    private boolean migratePendingTablesForUser(int userId) {
+        final ArraySet<String> tables = new ArraySet<String>();
+        synchronized (mPendingMigrations) {
+            final ArrayMap<String, ArraySet<String>> pending = mPendingMigrations.get(userId);
+            if (pending != null) {
+                tables.addAll(pending.keySet());
+            }
+        }
+
+        boolean migrated = true;
+        for (String tableName : tables) {
+            // This runs on a pool thread of the system process, an exception must not escape
+            try {
+                int rowsMigrated = migrateCMSettingsForTable(userId, tableName,
+                        sLegacySettings.get(tableName));
+                if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to CM " + tableName
+                        + " table for user id: " + userId);
+
+                mSharedPrefs.edit().putBoolean(getMigrationCheckpointKey(userId, tableName),
+                        true).commit();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to migrate CM " + tableName + " table for user id: "
+                        + userId, e);
+                migrated = false;
+            }
+
+            synchronized (mPendingMigrations) {
+                final ArrayMap<String, ArraySet<String>> pending =
+                        mPendingMigrations.get(userId);
+                if (pending != null) {
+                    pending.remove(tableName);
+                    if (pending.isEmpty()) {
+                        mPendingMigrations.remove(userId);
+                    }
+                }
+                mHasPendingMigrations = mPendingMigrations.size() > 0;
+            }
+        }
+        return migrated;
+    }
+
+    /**
+     * Returns whether a key has to be read from its legacy {@link Settings} table, because the
+     * background migration has not reached it yet and it was not written to since.
+     * @param userId The id of the user the table belongs to.
+     * @param tableName The name of the table.
+     * @param key The key to check.
+     * @return Whether the legacy value of the key is to be used.
+     */
+    private boolean isLegacyValuePending(int userId, String tableName, String key) {
+        if (!mHasPendingMigrations || !sLegacySettingKeys.get(tableName).contains(key)) {
+            return false;
+        }
+        synchronized (mPendingMigrations) {
+            final ArrayMap<String, ArraySet<String>> pending = mPendingMigrations.get(userId);
+            final ArraySet<String> written = pending != null ? pending.get(tableName) : null;
+            return written != null && !written.contains(key);
         }
     }
 
+    /**
+     * Records keys written while their table waits for the background migration, so the
+     * migration does not overwrite them with their legacy values. Writers call this before
+     * storing the keys, see {@link #migrateCMSettingsForTable}.
+     * @param userId The id of the user the table belongs to.
+     * @param tableName The name of the table.
+     * @param names The keys that were written.
+     */
+    private void noteWrittenDuringMigration(int userId, String tableName, List<String> names) {
+        if (!mHasPendingMigrations) {
+            return;
+        }
+        synchronized (mPendingMigrations) {
+            final ArrayMap<String, ArraySet<String>> pending = mPendingMigrations.get(userId);
+            final ArraySet<String> written = pending != null ? pending.get(tableName) : null;
+            if (written != null) {
+                written.addAll(names);
+            }
+        }
+    }
+
+    /**
+     * Reads the legacy value of a key not migrated yet, on behalf of a lookup.
+     * @param userId The id of the user to read the value for.
+     * @param tableName The name of the CM table the key belongs to.
+     * @param key The key to read.
+     * @return The legacy value, or null if there is none.
+     */
+    private String lookupLegacyValue(int userId, String tableName, String key) {
+        final long token = Binder.clearCallingIdentity();
+        try {
+            return getLegacySettingValue(getContext().getContentResolver(), tableName, key,
+                    userId);
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+    }
+
+    private boolean isWrittenDuringMigration(int userId, String tableName, String key) {
+        if (!mHasPendingMigrations) {
+            return false;
+        }
+        synchronized (mPendingMigrations) {
+            final ArrayMap<String, ArraySet<String>> pending = mPendingMigrations.get(userId);
+            final ArraySet<String> written = pending != null ? pending.get(tableName) : null;
+            return written != null && written.contains(key);
+        }
+    }
+
+    private static String getMigrationCheckpointKey(int userId, String tableName) {
+        return String.format(Locale.US, PREF_MIGRATED_TABLE_FORMAT, tableName, userId);
+    }
+
     /**
      * Migrates CM settings for a specific user.
      * @param userId The id of the user to run CM settings migration for.
      */
     private void migrateCMSettingsForUser(int userId) {
-        synchronized (this) {
+        synchronized (mMigrationLock) {
             if (LOCAL_LOGV) Log.d(TAG, "CM settings will be migrated for user id: " + userId);
 
             // Migrate system settings
@@ -187,7 +525,8 @@ public class CMSettingsProvider extends ContentProvider {
     }
 
     /**
-     * Migrates CM settings for a specific table and user id.
+     * Migrates CM settings for a specific table and user id. All the settings of the table are
+     * inserted in a single transaction.
      * @param userId The id of the user to run CM settings migration for.
      * @param tableName The name of the table to run CM settings migration on.
      * @param settings An array of keys to migrate from {@link Settings} to {@link CMSettings}
@@ -199,64 +538,15 @@ public class CMSettingsProvider extends ContentProvider {
 
         int migrateSettingsCount = 0;
         for (String settingsKey : settings) {
-            String settingsValue = null;
-
-            if (tableName.equals(CMDatabaseHelper.CMTableNames.TABLE_SYSTEM)) {
-                settingsValue = Settings.System.getStringForUser(contentResolver, settingsKey,
-                        userId);
-            }
-            else if (tableName.equals(CMDatabaseHelper.CMTableNames.TABLE_SECURE)) {
-                settingsValue = Settings.Secure.getStringForUser(contentResolver, settingsKey,
-                        userId);
-                if (settingsValue != null && settingsKey.equals(CMSettings.Secure.STATS_COLLECTION)
-                        && CMSettings.Secure.getStringForUser(contentResolver, settingsKey, userId)
-                        != null) {
-                    // incorrect migration from YOG4P -> YOG7D failed to remove
-                    // Settings.Secure.STATS_COLLECTION after migration; so it may exist in both
-                    // providers; so if it exists in the new database, prefer it.
-                    continue;
-                }
-
-                // insert dnd, edit tiles for upgrade from 12.1 -> 13.0
-                if (CMSettings.Secure.QS_TILES.equals(settingsKey) && (settingsValue != null
-                        && (!settingsValue.contains(QSConstants.TILE_DND)
-                        || !settingsValue.contains(QSConstants.TILE_EDIT)))) {
-                    if (LOCAL_LOGV) {
-                        Log.d(TAG, "Need to insert DND or Edit tile for upgrade, currentValue: "
-                                + settingsValue);
-                    }
-
-                    final List<String> tiles = Settings.Secure.getDelimitedStringAsList(
-                            contentResolver, settingsKey, ",");
-
-                    if (!tiles.contains(QSConstants.TILE_DND)) {
-                        tiles.add(QSConstants.TILE_DND);
-                    }
-                    if (!tiles.contains(QSConstants.TILE_EDIT)) {
-                        // we need to insert edit tile to the last tile on the first page!
-                        // ensure edit tile is present
-
-                        // use value in old database
-                        boolean nineTilesPerPage = Settings.Secure.getInt(contentResolver,
-                                CMSettings.Secure.QS_USE_MAIN_TILES, 0) == 1;
-
-                        final int TILES_PER_PAGE = nineTilesPerPage ? 9 : 8;
-
-                        if (tiles.size() > TILES_PER_PAGE) {
-                            tiles.add((TILES_PER_PAGE - 1), QSConstants.TILE_EDIT);
-                        } else {
-                            tiles.add(QSConstants.TILE_EDIT);
-                        }
-                    }
-
-                    settingsValue = TextUtils.join(",", tiles);
-                }
-            }
-            else if (tableName.equals(CMDatabaseHelper.CMTableNames.TABLE_GLOBAL)) {
-                settingsValue = Settings.Global.getStringForUser(contentResolver, settingsKey,
-                        userId);
+            if (isWrittenDuringMigration(userId, tableName, settingsKey)) {
+                if (LOCAL_LOGV) Log.d(TAG, "Skipping migrating " + settingsKey
+                        + " because it was written since the migration started");
+                continue;
             }
 
+            String settingsValue = getLegacySettingValue(contentResolver, tableName, settingsKey,
+                    userId);
+
             if (LOCAL_LOGV) Log.d(TAG, "Table: " + tableName + ", Key: " + settingsKey + ", Value: "
                     + settingsValue);
 
@@ -274,16 +564,121 @@ public class CMSettingsProvider extends ContentProvider {
             contentValues[migrateSettingsCount++] = contentValue;
         }
 
+        if (migrateSettingsCount == 0) {
+            return 0;
+        }
+
+        // Writers note their keys before storing them, so dropping the keys written since the
+        // legacy values were read and queuing the rest under the same lock can't overwrite a
+        // newer value. Waiting for the database is left out of the lock.
+        final SettingsMemoryStore store = getOrEstablishMemoryStore(
+                getUserIdForTable(tableName, userId));
+        final ArrayList<String> names = new ArrayList<String>(migrateSettingsCount);
         int rowsInserted = 0;
-        if (contentValues.length > 0) {
+        synchronized (mPendingMigrations) {
+            final ArrayMap<String, ArraySet<String>> pending = mPendingMigrations.get(userId);
+            final ArraySet<String> written = pending != null ? pending.get(tableName) : null;
+            int count = 0;
+            for (int i = 0; i < migrateSettingsCount; i++) {
+                final String name = contentValues[i].getAsString(Settings.NameValueTable.NAME);
+                if (written != null && written.contains(name)) {
+                    if (LOCAL_LOGV) Log.d(TAG, "Skipping migrating " + name
+                            + " because it was written since the migration started");
+                    continue;
+                }
+                contentValues[count++] = contentValues[i];
+                names.add(name);
+            }
+            if (count > 0) {
+                final ContentValues[] values = count == contentValues.length
+                        ? contentValues : Arrays.copyOf(contentValues, count);
+                rowsInserted = store.putValues(tableName, values, false);
+            }
+        }
+
+        if (rowsInserted > 0 && isDurableTable(tableName)) {
+            store.flush();
+        }
+
+        if (rowsInserted > 0) {
             Uri uri = mUriBuilder.build();
             uri = uri.buildUpon().appendPath(tableName).build();
-            rowsInserted = bulkInsertForUser(userId, uri, contentValues);
+            notifyChanges(uri, tableName, userId, names);
         }
 
         return rowsInserted;
     }
 
+    /**
+     * Reads the value a CM setting gets migrated to from its legacy {@link Settings} table.
+     * @param contentResolver The content resolver to read the legacy settings with.
+     * @param tableName The name of the CM table the setting belongs to.
+     * @param settingsKey The key of the setting.
+     * @param userId The id of the user to read the setting for.
+     * @return The value to migrate, or null if the setting is not to be migrated.
+     */
+    private String getLegacySettingValue(ContentResolver contentResolver, String tableName,
+            String settingsKey, int userId) {
+        String settingsValue = null;
+
+        if (tableName.equals(CMDatabaseHelper.CMTableNames.TABLE_SYSTEM)) {
+            settingsValue = Settings.System.getStringForUser(contentResolver, settingsKey,
+                    userId);
+        }
+        else if (tableName.equals(CMDatabaseHelper.CMTableNames.TABLE_SECURE)) {
+            settingsValue = Settings.Secure.getStringForUser(contentResolver, settingsKey,
+                    userId);
+            if (settingsValue != null && settingsKey.equals(CMSettings.Secure.STATS_COLLECTION)
+                    && getOrEstablishMemoryStore(userId).getValue(tableName, settingsKey) != null) {
+                // incorrect migration from YOG4P -> YOG7D failed to remove
+                // Settings.Secure.STATS_COLLECTION after migration; so it may exist in both
+                // providers; so if it exists in the new database, prefer it.
+                return null;
+            }
+
+            // insert dnd, edit tiles for upgrade from 12.1 -> 13.0
+            if (CMSettings.Secure.QS_TILES.equals(settingsKey) && (settingsValue != null
+                    && (!settingsValue.contains(QSConstants.TILE_DND)
+                    || !settingsValue.contains(QSConstants.TILE_EDIT)))) {
+                if (LOCAL_LOGV) {
+                    Log.d(TAG, "Need to insert DND or Edit tile for upgrade, currentValue: "
+                            + settingsValue);
+                }
+
+                final List<String> tiles = Settings.Secure.getDelimitedStringAsList(
+                        contentResolver, settingsKey, ",");
+
+                if (!tiles.contains(QSConstants.TILE_DND)) {
+                    tiles.add(QSConstants.TILE_DND);
+                }
+                if (!tiles.contains(QSConstants.TILE_EDIT)) {
+                    // we need to insert edit tile to the last tile on the first page!
+                    // ensure edit tile is present
+
+                    // use value in old database
+                    boolean nineTilesPerPage = Settings.Secure.getInt(contentResolver,
+                            CMSettings.Secure.QS_USE_MAIN_TILES, 0) == 1;
+
+                    final int TILES_PER_PAGE = nineTilesPerPage ? 9 : 8;
+
+                    if (tiles.size() > TILES_PER_PAGE) {
+                        tiles.add((TILES_PER_PAGE - 1), QSConstants.TILE_EDIT);
+                    } else {
+                        tiles.add(QSConstants.TILE_EDIT);
+                    }
+                }
+
+                settingsValue = TextUtils.join(",", tiles);
+            }
+        }
+        else if (tableName.equals(CMDatabaseHelper.CMTableNames.TABLE_GLOBAL)) {
+            settingsValue = Settings.Global.getStringForUser(contentResolver, settingsKey,
+                    userId);
+        }
+
+        return settingsValue;
+    }
+
     /**
      * Performs cleanup for the removed user.
      * @param userId The id of the user that is removed.
@@ -294,6 +689,7 @@ public class CMSettingsProvider extends ContentProvider {
             // our helpers and other internal bookkeeping.
 
             mDbHelpers.delete(userId);
+            mMemoryStores.delete(userId);
 
             if (LOCAL_LOGV) Log.d(TAG, "User " + userId + " is removed");
         }
@@ -318,20 +714,8 @@ public class CMSettingsProvider extends ContentProvider {
             }
         }
 
-        boolean hasMigratedCMSettings = mSharedPrefs.getBoolean(PREF_HAS_MIGRATED_CM_SETTINGS,
-                false);
-        final ComponentName preBootReceiver = new ComponentName("org.cyanogenmod.cmsettings",
-                "org.cyanogenmod.cmsettings.PreBootReceiver");
-        final PackageManager packageManager = getContext().getPackageManager();
-        if (!hasMigratedCMSettings &&
-                packageManager.getComponentEnabledSetting(preBootReceiver)
-                        == PackageManager.COMPONENT_ENABLED_STATE_DISABLED ) {
-            if (LOCAL_LOGV) {
-                Log.d(TAG, "Reenabling component preboot receiver");
-            }
-            packageManager.setComponentEnabledSetting(preBootReceiver,
-                    PackageManager.COMPONENT_ENABLED_STATE_ENABLED,
-                    PackageManager.DONT_KILL_APP);
+        if (mMigrationState == MIGRATION_STATE_RECEIVER_DISABLED) {
+            enablePreBootReceiver();
         }
 
         // Migrate methods
@@ -356,6 +740,28 @@ public class CMSettingsProvider extends ContentProvider {
             return lookupSingleValue(callingUserId, CMSettings.Global.CONTENT_URI, request);
         }
 
+        // Batch get methods
+        if (CMSettings.CALL_METHOD_GET_SYSTEM_BATCH.equals(method)) {
+            return lookupValues(callingUserId, CMSettings.System.CONTENT_URI, args);
+        }
+        else if (CMSettings.CALL_METHOD_GET_SECURE_BATCH.equals(method)) {
+            return lookupValues(callingUserId, CMSettings.Secure.CONTENT_URI, args);
+        }
+        else if (CMSettings.CALL_METHOD_GET_GLOBAL_BATCH.equals(method)) {
+            return lookupValues(callingUserId, CMSettings.Global.CONTENT_URI, args);
+        }
+
+        // List changes methods
+        if (CMSettings.CALL_METHOD_LIST_CHANGES_SYSTEM.equals(method)) {
+            return listChangesSince(mSystemChangeLog, callingUserId, args);
+        }
+        else if (CMSettings.CALL_METHOD_LIST_CHANGES_SECURE.equals(method)) {
+            return listChangesSince(mSecureChangeLog, callingUserId, args);
+        }
+        else if (CMSettings.CALL_METHOD_LIST_CHANGES_GLOBAL.equals(method)) {
+            return listChangesSince(mGlobalChangeLog, callingUserId, args);
+        }
+
         // Put methods - new value is in the args bundle under the key named by
         // the Settings.NameValueTable.VALUE static.
         final String newValue = (args == null)
@@ -363,12 +769,27 @@ public class CMSettingsProvider extends ContentProvider {
 
         // Framework can't do automatic permission checking for calls, so we need
         // to do it here.
-        if (CMSettings.CALL_METHOD_PUT_SYSTEM.equals(method)) {
+        if (CMSettings.CALL_METHOD_PUT_SYSTEM.equals(method)
+                || CMSettings.CALL_METHOD_PUT_SYSTEM_BATCH.equals(method)) {
             enforceWritePermission(cyanogenmod.platform.Manifest.permission.WRITE_SETTINGS);
         } else {
             enforceWritePermission(cyanogenmod.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
         }
 
+        // Batch put methods - names and values are in the args bundle
+        if (CMSettings.CALL_METHOD_PUT_SYSTEM_BATCH.equals(method)) {
+            insertValuesForUser(callingUserId, CMSettings.System.CONTENT_URI, args);
+            return null;
+        }
+        else if (CMSettings.CALL_METHOD_PUT_SECURE_BATCH.equals(method)) {
+            insertValuesForUser(callingUserId, CMSettings.Secure.CONTENT_URI, args);
+            return null;
+        }
+        else if (CMSettings.CALL_METHOD_PUT_GLOBAL_BATCH.equals(method)) {
+            insertValuesForUser(callingUserId, CMSettings.Global.CONTENT_URI, args);
+            return null;
+        }
+
         // Put methods
         final ContentValues values = new ContentValues();
         values.put(Settings.NameValueTable.NAME, request);
@@ -404,27 +825,96 @@ public class CMSettingsProvider extends ContentProvider {
      * @return A single value stored in a {@link Bundle}.
      */
     private Bundle lookupSingleValue(int userId, Uri uri, String key) {
-        Cursor cursor = null;
+        String tableName = getTableNameFromUri(uri);
+        SettingsMemoryStore store = getOrEstablishMemoryStore(getUserIdForTable(tableName,
+                userId));
+
+        String value;
         try {
-            cursor = queryForUser(userId, uri, new String[]{ Settings.NameValueTable.VALUE },
-                    Settings.NameValueTable.NAME + " = ?", new String[]{ key }, null);
+            value = store.getValue(tableName, key);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "settings lookup error", e);
+            return null;
+        }
 
-            if (cursor != null && cursor.getCount() == 1) {
-                cursor.moveToFirst();
-                String value = cursor.getString(0);
-                return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE,
-                        value);
+        // Until the migration reaches the key, its legacy value takes precedence over defaults
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        if (isLegacyValuePending(tableUserId, tableName, key)) {
+            String legacyValue = lookupLegacyValue(tableUserId, tableName, key);
+            if (legacyValue != null) {
+                value = legacyValue;
             }
+        }
+
+        return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE, value);
+    }
+
+    /**
+     * Looks up several values for a specific user and uri in a single query.
+     * @param userId The id of the user to perform the lookup for.
+     * @param uri The uri for which table to perform the lookup in.
+     * @param args The call arguments holding the keys to perform the lookup with.
+     * @return The keys and their values stored in a {@link Bundle}, in matching order.
+     */
+    private Bundle lookupValues(int userId, Uri uri, Bundle args) {
+        final ArrayList<String> names = args == null
+                ? null : args.getStringArrayList(CMSettings.CALL_METHOD_NAMES_KEY);
+        if (names == null) {
+            throw new IllegalArgumentException("Batch lookup requires a list of names");
+        }
+
+        String tableName = getTableNameFromUri(uri);
+        SettingsMemoryStore store = getOrEstablishMemoryStore(getUserIdForTable(tableName,
+                userId));
+
+        final HashMap<String, String> found = new HashMap<String, String>(names.size());
+        try {
+            store.getValues(tableName, names, found);
         } catch (SQLiteException e) {
             Log.w(TAG, "settings lookup error", e);
             return null;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+        }
+
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        final ArrayList<String> values = new ArrayList<String>(names.size());
+        for (String name : names) {
+            String value = found.get(name);
+            if (isLegacyValuePending(tableUserId, tableName, name)) {
+                String legacyValue = lookupLegacyValue(tableUserId, tableName, name);
+                if (legacyValue != null) {
+                    value = legacyValue;
+                }
             }
+            values.add(value);
+        }
+
+        Bundle result = new Bundle();
+        result.putStringArrayList(CMSettings.CALL_METHOD_NAMES_KEY, names);
+        result.putStringArrayList(CMSettings.CALL_METHOD_VALUES_KEY, values);
+        return result;
+    }
+
+    /**
+     * Lists the keys changed for a specific user since the table version in the args.
+     * @param changeLog The change log of the table to list the changes of.
+     * @param userId The id of the user to list the changes for.
+     * @param args The call arguments holding the version to list the changes since.
+     * @return The changed keys stored in a {@link Bundle}, or null if they are not known.
+     */
+    private Bundle listChangesSince(SettingsChangeLog changeLog, int userId, Bundle args) {
+        if (args == null || !args.containsKey(CMSettings.CALL_METHOD_VERSION_KEY)) {
+            return null;
+        }
+
+        ArrayList<String> names = changeLog.getChangesSince(
+                args.getLong(CMSettings.CALL_METHOD_VERSION_KEY), userId);
+        if (names == null) {
+            return null;
         }
 
-        return NULL_SETTING;
+        Bundle result = new Bundle();
+        result.putStringArrayList(CMSettings.CALL_METHOD_NAMES_KEY, names);
+        return result;
     }
 
     @Override
@@ -443,7 +933,9 @@ public class CMSettingsProvider extends ContentProvider {
      * @param selection The column names that the selection criteria applies to.
      * @param selectionArgs The column values that the selection criteria applies to.
      * @param sortOrder The ordering of how the values should be returned in the {@link Cursor}.
-     * @return {@link Cursor} of the results from the query.
+     * @return {@link Cursor} of the results from the query. Like lookups, queries of a single
+     *     element return its legacy value until the migration reaches it; queries of a whole
+     *     table only return what is stored in the table.
      */
     private Cursor queryForUser(int userId, Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
@@ -454,17 +946,29 @@ public class CMSettingsProvider extends ContentProvider {
         int code = sUriMatcher.match(uri);
         String tableName = getTableNameFromUriMatchCode(code);
 
-        CMDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
+        int tableUserId = getUserIdForTable(tableName, userId);
+        CMDatabaseHelper dbHelper = getOrEstablishDatabase(tableUserId);
         SQLiteDatabase db = dbHelper.getReadableDatabase();
 
+        // Cursors are served straight from the database, so make sure it has caught up
+        getOrEstablishMemoryStore(tableUserId).flush();
+
         SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
         queryBuilder.setTables(tableName);
 
         Cursor returnCursor;
         if (isItemUri(code)) {
             // The uri is looking for an element with a specific name
+            final String name = uri.getLastPathSegment();
             returnCursor = queryBuilder.query(db, projection, NAME_SELECTION,
-                    new String[] { uri.getLastPathSegment() }, null, null, sortOrder);
+                    new String[] { name }, null, null, sortOrder);
+            if (isLegacyValuePending(tableUserId, tableName, name)) {
+                String legacyValue = lookupLegacyValue(tableUserId, tableName, name);
+                if (legacyValue != null) {
+                    returnCursor = overlayLegacyValue(returnCursor, projection, name,
+                            legacyValue);
+                }
+            }
         } else {
             returnCursor = queryBuilder.query(db, projection, selection, selectionArgs, null,
                     null, sortOrder);
@@ -473,6 +977,42 @@ public class CMSettingsProvider extends ContentProvider {
         return returnCursor;
     }
 
+    /**
+     * Replaces the result of a single element query with the element's legacy value.
+     * @param cursor The result of the query, closed by this method.
+     * @param projection The columns requested by the query, or null for all of them.
+     * @param name The name of the element.
+     * @param legacyValue The legacy value of the element.
+     * @return A {@link Cursor} holding a single row with the legacy value.
+     */
+    private static Cursor overlayLegacyValue(Cursor cursor, String[] projection, String name,
+            String legacyValue) {
+        final String[] columns = projection != null ? projection : new String[] {
+                Settings.NameValueTable._ID, Settings.NameValueTable.NAME,
+                Settings.NameValueTable.VALUE };
+        final Object[] row = new Object[columns.length];
+        try {
+            final boolean hasRow = cursor != null && cursor.moveToFirst();
+            for (int i = 0; i < columns.length; i++) {
+                if (Settings.NameValueTable.NAME.equals(columns[i])) {
+                    row[i] = name;
+                } else if (Settings.NameValueTable.VALUE.equals(columns[i])) {
+                    row[i] = legacyValue;
+                } else if (hasRow && cursor.getColumnIndex(columns[i]) >= 0) {
+                    row[i] = cursor.getString(cursor.getColumnIndex(columns[i]));
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        final MatrixCursor result = new MatrixCursor(columns, 1);
+        result.addRow(row);
+        return result;
+    }
+
     @Override
     public String getType(Uri uri) {
         int code = sUriMatcher.match(uri);
@@ -507,43 +1047,75 @@ public class CMSettingsProvider extends ContentProvider {
             throw new IllegalArgumentException("ContentValues cannot be null");
         }
 
-        int numRowsAffected = 0;
-
         String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
 
-        CMDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-
-        db.beginTransaction();
-        try {
-            for (ContentValues value : values) {
-                if (value == null) {
-                    continue;
-                }
-
-                long rowId = db.insert(tableName, null, value);
-
-                if (rowId >= 0) {
-                    numRowsAffected++;
-                } else {
-                    return 0;
-                }
+        final ArrayList<String> names = new ArrayList<String>(values.length);
+        for (ContentValues value : values) {
+            if (value != null) {
+                names.add(value.getAsString(Settings.NameValueTable.NAME));
             }
-
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
         }
 
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        noteWrittenDuringMigration(tableUserId, tableName, names);
+        SettingsMemoryStore store = getOrEstablishMemoryStore(tableUserId);
+        int numRowsAffected = store.putValues(tableName, values, isDurableTable(tableName));
+
         if (numRowsAffected > 0) {
-            notifyChange(uri, tableName, userId);
+            notifyChanges(uri, tableName, userId, names);
             if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) inserted");
         }
 
         return numRowsAffected;
     }
 
+    /**
+     * Performs insert of several name/value pairs for a specific user in a single transaction.
+     * All the values are validated before any of them is written.
+     * @param userId The user id to perform the insert for.
+     * @param uri The content:// URI of the insertion request.
+     * @param args The call arguments holding the names and values to add to the database.
+     * @return Number of rows inserted.
+     */
+    private int insertValuesForUser(int userId, Uri uri, Bundle args) {
+        final ArrayList<String> names = args == null
+                ? null : args.getStringArrayList(CMSettings.CALL_METHOD_NAMES_KEY);
+        final ArrayList<String> values = args == null
+                ? null : args.getStringArrayList(CMSettings.CALL_METHOD_VALUES_KEY);
+        if (names == null || values == null || names.size() != values.size()) {
+            throw new IllegalArgumentException("Batch insert requires matching names and values");
+        }
+
+        String tableName = getTableNameFromUri(uri);
+        checkWritePermissions(tableName);
+
+        for (int i = 0; i < names.size(); i++) {
+            if (CMDatabaseHelper.CMTableNames.TABLE_SYSTEM.equals(tableName)) {
+                validateSystemSettingNameValue(names.get(i), values.get(i));
+            } else if (CMDatabaseHelper.CMTableNames.TABLE_SECURE.equals(tableName)) {
+                validateSecureSettingValue(names.get(i), values.get(i));
+            }
+        }
+
+        final ContentValues[] contentValues = new ContentValues[names.size()];
+        for (int i = 0; i < names.size(); i++) {
+            contentValues[i] = new ContentValues();
+            contentValues[i].put(Settings.NameValueTable.NAME, names.get(i));
+            contentValues[i].put(Settings.NameValueTable.VALUE, values.get(i));
+        }
+
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        noteWrittenDuringMigration(tableUserId, tableName, names);
+        SettingsMemoryStore store = getOrEstablishMemoryStore(tableUserId);
+        store.putValues(tableName, contentValues, isDurableTable(tableName));
+
+        notifyChanges(uri, tableName, userId, names);
+        if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + names.size() + " row(s) inserted");
+
+        return names.size();
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         return insertForUser(UserHandle.getCallingUserId(), uri, values);
@@ -569,7 +1141,8 @@ public class CMSettingsProvider extends ContentProvider {
         String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
 
-        CMDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
+        SettingsMemoryStore store = getOrEstablishMemoryStore(getUserIdForTable(tableName,
+                userId));
 
         // Validate value if inserting int System table
         final String name = values.getAsString(Settings.NameValueTable.NAME);
@@ -580,16 +1153,13 @@ public class CMSettingsProvider extends ContentProvider {
             validateSecureSettingValue(name, value);
         }
 
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        long rowId = db.insert(tableName, null, values);
+        noteWrittenDuringMigration(getUserIdForTable(tableName, userId), tableName,
+                Collections.singletonList(name));
+        store.putValues(tableName, new ContentValues[] { values }, isDurableTable(tableName));
 
-        Uri returnUri = null;
-        if (rowId > -1) {
-            returnUri = Uri.withAppendedPath(uri, name);
-            notifyChange(returnUri, tableName, userId);
-            if (LOCAL_LOGV) Log.d(TAG, "Inserted row id: " + rowId + " into tableName: " +
-                    tableName);
-        }
+        Uri returnUri = Uri.withAppendedPath(uri, name);
+        notifyChange(returnUri, tableName, userId);
+        if (LOCAL_LOGV) Log.d(TAG, "Inserted " + name + " into tableName: " + tableName);
 
         return returnUri;
     }
@@ -609,11 +1179,31 @@ public class CMSettingsProvider extends ContentProvider {
             checkWritePermissions(tableName);
 
             int callingUserId = UserHandle.getCallingUserId();
-            CMDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
-                    callingUserId));
+            int tableUserId = getUserIdForTable(tableName, callingUserId);
+            CMDatabaseHelper dbHelper = getOrEstablishDatabase(tableUserId);
+            SettingsMemoryStore store = getOrEstablishMemoryStore(tableUserId);
+
+            if (NAME_SELECTION.equals(selection) && selectionArgs.length == 1) {
+                // Deleting a single key is mirrored in memory and written behind like inserts
+                final String name = selectionArgs[0];
+                noteWrittenDuringMigration(tableUserId, tableName,
+                        Collections.singletonList(name));
+                if (store.deleteValue(tableName, name, isDurableTable(tableName))) {
+                    numRowsAffected = 1;
+                    final Uri tableUri = isItemUri(sUriMatcher.match(uri)) ? getTableUri(uri) : uri;
+                    notifyChanges(tableUri, tableName, callingUserId,
+                            Collections.singletonList(name));
+                    if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + name + " deleted");
+                }
+                return numRowsAffected;
+            }
 
+            // Arbitrary selections can't be mirrored in memory; let the database catch up,
+            // apply the selection there and reload the table afterwards.
+            store.flush();
             SQLiteDatabase db = dbHelper.getWritableDatabase();
             numRowsAffected = db.delete(tableName, selection, selectionArgs);
+            store.invalidate(tableName);
 
             if (numRowsAffected > 0) {
                 notifyChange(uri, tableName, callingUserId);
@@ -652,11 +1242,20 @@ public class CMSettingsProvider extends ContentProvider {
         }
 
         int callingUserId = UserHandle.getCallingUserId();
-        CMDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
-                callingUserId));
+        int tableUserId = getUserIdForTable(tableName, callingUserId);
+        CMDatabaseHelper dbHelper = getOrEstablishDatabase(tableUserId);
+        SettingsMemoryStore store = getOrEstablishMemoryStore(tableUserId);
+
+        if (isItemUri(sUriMatcher.match(uri))) {
+            noteWrittenDuringMigration(tableUserId, tableName,
+                    Collections.singletonList(uri.getLastPathSegment()));
+        }
 
+        // Same as delete(): the selection is applied to the database, not to memory
+        store.flush();
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         int numRowsAffected = db.update(tableName, values, selection, selectionArgs);
+        store.invalidate(tableName);
 
         if (numRowsAffected > 0) {
             notifyChange(uri, tableName, callingUserId);
@@ -701,6 +1300,24 @@ public class CMSettingsProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Gets the {@link SettingsMemoryStore} mirroring the database of the specified user,
+     * establishing the database first if needed.
+     * @param callingUser
+     * @return
+     */
+    private SettingsMemoryStore getOrEstablishMemoryStore(int callingUser) {
+        CMDatabaseHelper dbHelper = getOrEstablishDatabase(callingUser);
+        synchronized (this) {
+            SettingsMemoryStore store = mMemoryStores.get(callingUser);
+            if (store == null) {
+                store = new SettingsMemoryStore(dbHelper, mWriteHandler);
+                mMemoryStores.append(callingUser, store);
+            }
+            return store;
+        }
+    }
+
     /**
      * Check if a {@link CMDatabaseHelper} exists for a user and if it doesn't, a new helper is
      * created and added to the list of tracked database helpers
@@ -748,6 +1365,15 @@ public class CMSettingsProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Returns whether writes to the table have to reach the database before the caller returns
+     * @param tableName
+     * @return
+     */
+    private boolean isDurableTable(String tableName) {
+        return CMDatabaseHelper.CMTableNames.TABLE_SECURE.equals(tableName);
+    }
+
     /**
      * Returns whether the matched uri code refers to an item in a table
      * @param code
@@ -820,30 +1446,62 @@ public class CMSettingsProvider extends ContentProvider {
      * @param userId
      */
     private void notifyChange(Uri uri, String tableName, int userId) {
-        String property = null;
+        // Only item uris tell which key changed; anything else invalidates the whole table
+        if (isItemUri(sUriMatcher.match(uri))) {
+            notifyChanges(getTableUri(uri), tableName, userId,
+                    Collections.singletonList(uri.getLastPathSegment()));
+        } else {
+            notifyChanges(uri, tableName, userId, null);
+        }
+    }
+
+    /**
+     * Modify setting version once for several keys of an updated table before notifying of
+     * the change. Observers are notified through the {@link SettingsNotifier}, which coalesces
+     * bursts of changes.
+     * @param tableUri the uri of the updated table
+     * @param tableName
+     * @param userId
+     * @param names the keys that changed, or null if it is not known which keys changed
+     */
+    private void notifyChanges(Uri tableUri, String tableName, int userId, List<String> names) {
+        SettingsChangeLog changeLog = null;
         final boolean isGlobal = tableName.equals(CMDatabaseHelper.CMTableNames.TABLE_GLOBAL);
         if (tableName.equals(CMDatabaseHelper.CMTableNames.TABLE_SYSTEM)) {
-            property = CMSettings.System.SYS_PROP_CM_SETTING_VERSION;
+            changeLog = mSystemChangeLog;
         } else if (tableName.equals(CMDatabaseHelper.CMTableNames.TABLE_SECURE)) {
-            property = CMSettings.Secure.SYS_PROP_CM_SETTING_VERSION;
+            changeLog = mSecureChangeLog;
         } else if (isGlobal) {
-            property = CMSettings.Global.SYS_PROP_CM_SETTING_VERSION;
+            changeLog = mGlobalChangeLog;
         }
 
-        if (property != null) {
-            long version = SystemProperties.getLong(property, 0) + 1;
-            if (LOCAL_LOGV) Log.v(TAG, "property: " + property + "=" + version);
-            SystemProperties.set(property, Long.toString(version));
+        final int notifyTarget = isGlobal ? UserHandle.USER_ALL : userId;
+
+        if (changeLog != null) {
+            long version = changeLog.bumpVersion(notifyTarget, names);
+            if (LOCAL_LOGV) Log.v(TAG, "table: " + tableName + " version=" + version);
         }
 
-        final int notifyTarget = isGlobal ? UserHandle.USER_ALL : userId;
-        final long oldId = Binder.clearCallingIdentity();
-        try {
-            getContext().getContentResolver().notifyChange(uri, null, true, notifyTarget);
-        } finally {
-            Binder.restoreCallingIdentity(oldId);
+        final List<Uri> uris;
+        if (names == null) {
+            uris = Collections.singletonList(tableUri);
+        } else {
+            uris = new ArrayList<Uri>(names.size());
+            for (String name : names) {
+                uris.add(Uri.withAppendedPath(tableUri, name));
+            }
         }
-        if (LOCAL_LOGV) Log.v(TAG, "notifying for " + notifyTarget + ": " + uri);
+        mNotifier.notifyChange(uris, tableUri, notifyTarget);
+    }
+
+    /**
+     * Returns the uri of the table an item uri belongs to
+     * @param uri
+     * @return
+     */
+    private Uri getTableUri(Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        return uri.buildUpon().path(segments.get(0)).build();
     }
 
     private void validateSystemSettingNameValue(String name, String value) {
@@ -868,6 +1526,4 @@ public class CMSettingsProvider extends ContentProvider {
                     + " for setting: " + name);
         }
     }
-
-    // TODO Add caching
 }
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2018, The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmsettings;
+
+import android.os.SystemProperties;
+import android.os.UserHandle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded record of which keys of a table changed at which table version. The table version is
+ * published through a system property; clients of {@link cyanogenmod.providers.CMSettings} use
+ * this log to evict only the keys that changed since the version their cache was filled at.
+ */
+final class SettingsChangeLog {
+    private static final int CAPACITY = 256;
+
+    private final String mVersionSystemProperty;
+
+    // Circular buffer of changes, oldest first starting at mHead - mSize.
+    private final long[] mVersions = new long[CAPACITY];
+    private final int[] mUserIds = new int[CAPACITY];
+    private final String[] mNames = new String[CAPACITY];
+    private int mHead;
+    private int mSize;
+
+    // Oldest client version this log can still answer for.
+    private long mBaseVersion;
+
+    SettingsChangeLog(String versionSystemProperty) {
+        mVersionSystemProperty = versionSystemProperty;
+        mBaseVersion = SystemProperties.getLong(versionSystemProperty, 0);
+    }
+
+    /**
+     * Bumps the table version once and records the keys that changed with it.
+     * @param userId The user the change was made for, or {@link UserHandle#USER_ALL}.
+     * @param names The keys that changed, or null if it is not known which keys changed.
+     * @return The new table version.
+     */
+    synchronized long bumpVersion(int userId, List<String> names) {
+        final long version = SystemProperties.getLong(mVersionSystemProperty, 0) + 1;
+        SystemProperties.set(mVersionSystemProperty, Long.toString(version));
+
+        if (names == null || names.size() > CAPACITY) {
+            // Nobody can tell what changed; every client has to start over.
+            clear(version);
+            return version;
+        }
+
+        for (String name : names) {
+            if (mSize == CAPACITY) {
+                // Clients older than the evicted entry can no longer be answered.
+                mBaseVersion = mVersions[mHead];
+                mSize--;
+            }
+            mVersions[mHead] = version;
+            mUserIds[mHead] = userId;
+            mNames[mHead] = name;
+            mHead = (mHead + 1) % CAPACITY;
+            mSize++;
+        }
+        return version;
+    }
+
+    /**
+     * Returns the keys changed for a user after the given table version.
+     * @param version The table version the caller's cache was filled at.
+     * @param userId The user to list changes for.
+     * @return The changed keys, or null if the log no longer covers the given version.
+     */
+    synchronized ArrayList<String> getChangesSince(long version, int userId) {
+        if (version < mBaseVersion) {
+            return null;
+        }
+
+        ArrayList<String> names = new ArrayList<String>();
+        for (int i = 0; i < mSize; i++) {
+            final int index = (mHead - mSize + i + CAPACITY) % CAPACITY;
+            if (mVersions[index] > version && (mUserIds[index] == userId
+                    || mUserIds[index] == UserHandle.USER_ALL)) {
+                names.add(mNames[index]);
+            }
+        }
+        return names;
+    }
+
+    private void clear(long version) {
+        for (int i = 0; i < CAPACITY; i++) {
+            mNames[i] = null;
+        }
+        mHead = 0;
+        mSize = 0;
+        mBaseVersion = version;
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright (c) 2018, The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmsettings;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The SettingsMemoryStore holds the authoritative in-memory copy of the tables of a
+ * {@link CMDatabaseHelper}. Reads are served from memory; writes update memory right away and
+ * are written behind to SQLite, in order, on the writer thread.
+ */
+final class SettingsMemoryStore {
+    private static final String TAG = "SettingsMemoryStore";
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final String[] PROJECTION_NAME_VALUE = new String[] {
+            Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE };
+
+    private static final Runnable BARRIER = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final CMDatabaseHelper mDbHelper;
+    private final Handler mWriteHandler;
+
+    // Guards mTables. The writer thread never takes it, so waiting on the writer while holding
+    // it is safe.
+    private final Object mLock = new Object();
+    private final ArrayMap<String, HashMap<String, String>> mTables =
+            new ArrayMap<String, HashMap<String, String>>();
+
+    // Tables whose write-behind failed; their in-memory copy has to be reloaded from disk.
+    private final Set<String> mStaleTables =
+            Collections.synchronizedSet(new ArraySet<String>());
+
+    /**
+     * Creates an instance of {@link SettingsMemoryStore}
+     * @param dbHelper The database helper of the user to mirror the tables of.
+     * @param writeHandler The handler of the thread the writes are performed on.
+     */
+    SettingsMemoryStore(CMDatabaseHelper dbHelper, Handler writeHandler) {
+        mDbHelper = dbHelper;
+        mWriteHandler = writeHandler;
+    }
+
+    /**
+     * Looks up a single value.
+     * @param tableName The name of the table to perform the lookup in.
+     * @param name The key to perform the lookup with.
+     * @return The value, or null if it is not present.
+     */
+    String getValue(String tableName, String name) {
+        synchronized (mLock) {
+            return getTableLocked(tableName).get(name);
+        }
+    }
+
+    /**
+     * Looks up several values.
+     * @param tableName The name of the table to perform the lookup in.
+     * @param names The keys to perform the lookup with.
+     * @param values The map the present keys and their values are added to.
+     */
+    void getValues(String tableName, List<String> names, Map<String, String> values) {
+        synchronized (mLock) {
+            final HashMap<String, String> table = getTableLocked(tableName);
+            for (String name : names) {
+                if (table.containsKey(name)) {
+                    values.put(name, table.get(name));
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores several name/value pairs. They are visible to readers right away and are written
+     * to the database, in a single transaction, behind the caller's back.
+     * @param tableName The name of the table to store the values in.
+     * @param values The sets of name/value pairs to store, null entries are skipped.
+     * @param durable Whether to wait until the values are written to the database.
+     * @return Number of rows stored.
+     */
+    int putValues(final String tableName, ContentValues[] values, boolean durable) {
+        final ContentValues[] rows = new ContentValues[values.length];
+        int count = 0;
+        synchronized (mLock) {
+            final HashMap<String, String> table = getTableLocked(tableName);
+            for (ContentValues value : values) {
+                if (value == null) {
+                    continue;
+                }
+                rows[count++] = new ContentValues(value);
+                table.put(value.getAsString(Settings.NameValueTable.NAME),
+                        value.getAsString(Settings.NameValueTable.VALUE));
+            }
+
+            // Queued while holding the lock, so the queue order matches the memory order
+            final int rowCount = count;
+            mWriteHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    writeRows(tableName, rows, rowCount);
+                }
+            });
+        }
+
+        if (durable) {
+            flush();
+        }
+        return count;
+    }
+
+    /**
+     * Deletes a single name/value pair. The deletion is visible to readers right away and is
+     * applied to the database behind the caller's back.
+     * @param tableName The name of the table to delete from.
+     * @param name The key to delete.
+     * @param durable Whether to wait until the deletion is applied to the database.
+     * @return Whether the key was present.
+     */
+    boolean deleteValue(final String tableName, final String name, boolean durable) {
+        final boolean present;
+        synchronized (mLock) {
+            final HashMap<String, String> table = getTableLocked(tableName);
+            present = table.containsKey(name);
+            if (present) {
+                table.remove(name);
+                mWriteHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deleteRow(tableName, name);
+                    }
+                });
+            }
+        }
+
+        if (durable && present) {
+            flush();
+        }
+        return present;
+    }
+
+    /**
+     * Waits until every write queued so far has reached the database.
+     */
+    void flush() {
+        mWriteHandler.runWithScissors(BARRIER, 0);
+    }
+
+    /**
+     * Drops the in-memory copy of a table, to be used after the table was modified directly in
+     * the database. The table is reloaded on the next lookup.
+     * @param tableName The name of the table to drop.
+     */
+    void invalidate(String tableName) {
+        synchronized (mLock) {
+            mTables.remove(tableName);
+        }
+    }
+
+    private HashMap<String, String> getTableLocked(final String tableName) {
+        if (mStaleTables.remove(tableName)) {
+            mTables.remove(tableName);
+        }
+
+        HashMap<String, String> table = mTables.get(tableName);
+        if (table == null) {
+            final HashMap<String, String> loaded = new HashMap<String, String>();
+            final SQLiteException[] error = new SQLiteException[1];
+            // Load on the writer thread, so everything queued before is part of the result
+            mWriteHandler.runWithScissors(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        loadTable(tableName, loaded);
+                    } catch (SQLiteException e) {
+                        error[0] = e;
+                    }
+                }
+            }, 0);
+            if (error[0] != null) {
+                throw error[0];
+            }
+            table = loaded;
+            mTables.put(tableName, table);
+        }
+        return table;
+    }
+
+    private void loadTable(String tableName, HashMap<String, String> table) {
+        final SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        Cursor cursor = null;
+        try {
+            cursor = db.query(tableName, PROJECTION_NAME_VALUE, null, null, null, null, null);
+            while (cursor.moveToNext()) {
+                table.put(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (LOCAL_LOGV) Log.d(TAG, tableName + ": loaded " + table.size() + " row(s)");
+    }
+
+    private void writeRows(String tableName, ContentValues[] rows, int rowCount) {
+        try {
+            final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            final SQLiteStatement stmt = mDbHelper.getUpsertStatement(tableName);
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < rowCount; i++) {
+                    final String value = rows[i].getAsString(Settings.NameValueTable.VALUE);
+                    stmt.bindString(1, rows[i].getAsString(Settings.NameValueTable.NAME));
+                    if (value == null) {
+                        stmt.bindNull(2);
+                    } else {
+                        stmt.bindString(2, value);
+                    }
+                    stmt.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                stmt.clearBindings();
+                db.endTransaction();
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Failed to write " + rowCount + " row(s) to " + tableName, e);
+            // Memory got ahead of the database; the database wins.
+            mStaleTables.add(tableName);
+        }
+    }
+
+    private void deleteRow(String tableName, String name) {
+        try {
+            final SQLiteStatement stmt = mDbHelper.getDeleteStatement(tableName);
+            try {
+                stmt.bindString(1, name);
+                stmt.executeUpdateDelete();
+            } finally {
+                stmt.clearBindings();
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Failed to delete " + name + " from " + tableName, e);
+            mStaleTables.add(tableName);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2018, The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmsettings;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.List;
+
+/**
+ * The SettingsNotifier delivers settings change notifications to content observers. The first
+ * change after a quiet period is delivered right away; changes arriving while a burst is going
+ * on are collected and delivered together at the end of the coalescing window, with duplicate
+ * uris dropped. When too many keys of a table changed at once, observers get a single
+ * notification for the table instead of one per key.
+ */
+final class SettingsNotifier {
+    private static final String TAG = "SettingsNotifier";
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final long COALESCE_WINDOW_MS = 100;
+
+    // Above this many keys of one table, notify the table uri once instead
+    private static final int MAX_ITEM_URIS_PER_TABLE = 16;
+
+    private final ContentResolver mContentResolver;
+    private final Handler mHandler;
+
+    // Pending notifications by notify target, each mapping the uri to its table uri.
+    // Guarded by this.
+    private SparseArray<ArrayMap<Uri, Uri>> mPending = new SparseArray<ArrayMap<Uri, Uri>>();
+    private boolean mFlushScheduled;
+    private long mLastDispatchTime = -COALESCE_WINDOW_MS;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final SparseArray<ArrayMap<Uri, Uri>> pending;
+            synchronized (SettingsNotifier.this) {
+                pending = mPending;
+                mPending = new SparseArray<ArrayMap<Uri, Uri>>();
+                mFlushScheduled = false;
+                mLastDispatchTime = SystemClock.uptimeMillis();
+            }
+            for (int i = 0; i < pending.size(); i++) {
+                dispatch(pending.valueAt(i), pending.keyAt(i));
+            }
+        }
+    };
+
+    /**
+     * Creates an instance of {@link SettingsNotifier}
+     * @param contentResolver The content resolver to send the notifications through.
+     * @param handler The handler of the thread coalesced notifications are sent on.
+     */
+    SettingsNotifier(ContentResolver contentResolver, Handler handler) {
+        mContentResolver = contentResolver;
+        mHandler = handler;
+    }
+
+    /**
+     * Notifies observers that keys of a table changed.
+     * @param uris The uris that changed.
+     * @param tableUri The uri of the table the uris belong to.
+     * @param notifyTarget The user to notify, or {@link android.os.UserHandle#USER_ALL}.
+     */
+    void notifyChange(List<Uri> uris, Uri tableUri, int notifyTarget) {
+        final ArrayMap<Uri, Uri> changes = new ArrayMap<Uri, Uri>(uris.size());
+        for (Uri uri : uris) {
+            changes.put(uri, tableUri);
+        }
+
+        synchronized (this) {
+            final long now = SystemClock.uptimeMillis();
+            if (mFlushScheduled || now - mLastDispatchTime < COALESCE_WINDOW_MS) {
+                // A burst is going on; deliver along with everything else at the window's end
+                ArrayMap<Uri, Uri> pending = mPending.get(notifyTarget);
+                if (pending == null) {
+                    pending = new ArrayMap<Uri, Uri>();
+                    mPending.put(notifyTarget, pending);
+                }
+                pending.putAll(changes);
+                if (!mFlushScheduled) {
+                    mFlushScheduled = true;
+                    mHandler.postAtTime(mFlushRunnable, mLastDispatchTime + COALESCE_WINDOW_MS);
+                }
+                return;
+            }
+            mLastDispatchTime = now;
+        }
+
+        dispatch(changes, notifyTarget);
+    }
+
+    private void dispatch(ArrayMap<Uri, Uri> changes, int notifyTarget) {
+        // Collapse tables with too many changed keys into a single table notification
+        final ArrayMap<Uri, Integer> countByTable = new ArrayMap<Uri, Integer>();
+        for (int i = 0; i < changes.size(); i++) {
+            final Uri tableUri = changes.valueAt(i);
+            final Integer count = countByTable.get(tableUri);
+            countByTable.put(tableUri, count == null ? 1 : count + 1);
+        }
+
+        final ArraySet<Uri> uris = new ArraySet<Uri>(changes.size());
+        for (int i = 0; i < changes.size(); i++) {
+            final Uri tableUri = changes.valueAt(i);
+            uris.add(countByTable.get(tableUri) > MAX_ITEM_URIS_PER_TABLE
+                    ? tableUri : changes.keyAt(i));
+        }
+
+        final long oldId = Binder.clearCallingIdentity();
+        try {
+            for (Uri uri : uris) {
+                mContentResolver.notifyChange(uri, null, true, notifyTarget);
+                if (LOCAL_LOGV) Log.v(TAG, "notifying for " + notifyTarget + ": " + uri);
+            }
+        } finally {
+            Binder.restoreCallingIdentity(oldId);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2018, The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.cmsettings.tests;
+
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.IContentProvider;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import cyanogenmod.providers.CMSettings;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the provider's read and write latency with several concurrent readers and a single
+ * writer. Calls go straight to the provider, bypassing the client-side cache, and the results
+ * are logged under the {@link #TAG} tag for comparison between builds.
+ */
+public class CMSettingsProviderLatencyTest extends AndroidTestCase {
+    private static final String TAG = "CMSettingsProviderLatencyTest";
+
+    private static final String KEY = "testLatencyKey";
+
+    private static final int READER_COUNT = 4;
+    private static final int READS_PER_READER = 500;
+    private static final int WRITES = 200;
+    private static final int CALL_ITERATIONS = 1000;
+
+    private ContentResolver mContentResolver;
+    private IContentProvider mContentProvider;
+
+    @Override
+    public void setUp() {
+        mContentResolver = mContext.getContentResolver();
+        mContentProvider = mContentResolver.acquireProvider(CMSettings.AUTHORITY);
+    }
+
+    @Override
+    public void tearDown() {
+        mContentResolver.delete(CMSettings.Global.CONTENT_URI,
+                Settings.NameValueTable.NAME + " = ?", new String[]{ KEY });
+    }
+
+    @LargeTest
+    public void testConcurrentReadersSingleWriter() throws Exception {
+        assertTrue(CMSettings.Global.putString(mContentResolver, KEY, "0"));
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(READER_COUNT + 1);
+        final AtomicLong readNanos = new AtomicLong();
+        final AtomicLong writeNanos = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+
+        for (int i = 0; i < READER_COUNT; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < READS_PER_READER; j++) {
+                            final long begin = SystemClock.elapsedRealtimeNanos();
+                            Bundle b = mContentProvider.call(mContentResolver.getPackageName(),
+                                    CMSettings.CALL_METHOD_GET_GLOBAL, KEY, null);
+                            readNanos.addAndGet(SystemClock.elapsedRealtimeNanos() - begin);
+                            if (b == null || b.getPairValue() == null) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException | RemoteException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    for (int j = 0; j < WRITES; j++) {
+                        Bundle args = new Bundle();
+                        args.putString(Settings.NameValueTable.VALUE, Integer.toString(j));
+                        final long begin = SystemClock.elapsedRealtimeNanos();
+                        mContentProvider.call(mContentResolver.getPackageName(),
+                                CMSettings.CALL_METHOD_PUT_GLOBAL, KEY, args);
+                        writeNanos.addAndGet(SystemClock.elapsedRealtimeNanos() - begin);
+                    }
+                } catch (InterruptedException | RemoteException e) {
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }
+        }).start();
+
+        start.countDown();
+        done.await();
+
+        final int reads = READER_COUNT * READS_PER_READER;
+        Log.i(TAG, "readers=" + READER_COUNT + " reads=" + reads
+                + " avg read us=" + readNanos.get() / reads / 1000
+                + " writes=" + WRITES
+                + " avg write us=" + writeNanos.get() / WRITES / 1000);
+
+        assertEquals(0, failures.get());
+        assertEquals(Integer.toString(WRITES - 1),
+                CMSettings.Global.getString(mContentResolver, KEY));
+    }
+
+    /**
+     * Compares the cost of a single GET call with the cost of the PackageManager query call()
+     * used to make for the PreBootReceiver state before serving it.
+     */
+    @LargeTest
+    public void testGetCallOverhead() throws Exception {
+        assertTrue(CMSettings.Global.putString(mContentResolver, KEY, "0"));
+
+        final PackageManager packageManager = mContext.getPackageManager();
+        final ComponentName preBootReceiver = new ComponentName("org.cyanogenmod.cmsettings",
+                "org.cyanogenmod.cmsettings.PreBootReceiver");
+
+        // Warm up both paths
+        for (int i = 0; i < CALL_ITERATIONS / 10; i++) {
+            mContentProvider.call(mContentResolver.getPackageName(),
+                    CMSettings.CALL_METHOD_GET_GLOBAL, KEY, null);
+            packageManager.getComponentEnabledSetting(preBootReceiver);
+        }
+
+        long begin = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < CALL_ITERATIONS; i++) {
+            Bundle b = mContentProvider.call(mContentResolver.getPackageName(),
+                    CMSettings.CALL_METHOD_GET_GLOBAL, KEY, null);
+            assertNotNull(b);
+        }
+        final long getNanos = SystemClock.elapsedRealtimeNanos() - begin;
+
+        begin = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < CALL_ITERATIONS; i++) {
+            packageManager.getComponentEnabledSetting(preBootReceiver);
+        }
+        final long packageManagerNanos = SystemClock.elapsedRealtimeNanos() - begin;
+
+        Log.i(TAG, "calls=" + CALL_ITERATIONS
+                + " avg get us=" + getNanos / CALL_ITERATIONS / 1000
+                + " avg former per-call overhead us="
+                + packageManagerNanos / CALL_ITERATIONS / 1000);
+    }
+}
@@ -25,6 +25,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
@@ -35,7 +36,9 @@ import android.text.TextUtils;
 import cyanogenmod.providers.CMSettings;
 import org.cyanogenmod.cmsettings.CMSettingsProvider;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
  public class CMSettingsProviderTest extends AndroidTestCase {
@@ -313,6 +316,108 @@ import java.util.Map;
          }
      }
 
+     @MediumTest
+     public void testBatchPutGetSuccess() {
+         final int userId = UserHandle.myUserId();
+         assertTrue(CMSettings.Secure.putStringsForUser(mContentResolver, sMap, userId));
+         try {
+             List<String> names = new ArrayList<String>(sMap.keySet());
+             names.add("testMissingKey");
+
+             Map<String, String> values = CMSettings.Secure.getStringsForUser(mContentResolver,
+                     names, userId);
+             assertEquals(names.size(), values.size());
+             for (Map.Entry<String, String> kVPair : sMap.entrySet()) {
+                 assertEquals(kVPair.getValue(), values.get(kVPair.getKey()));
+             }
+             assertTrue(values.containsKey("testMissingKey"));
+             assertNull(values.get("testMissingKey"));
+         } finally {
+             for (String key : sMap.keySet()) {
+                 mContentResolver.delete(CMSettings.Secure.CONTENT_URI,
+                         Settings.NameValueTable.NAME + " = ?", new String[]{ key });
+             }
+         }
+     }
+
+     @MediumTest
+     public void testPrefetch() {
+         assertTrue(CMSettings.Secure.putStringsForUser(mContentResolver, sMap,
+                 UserHandle.myUserId()));
+         try {
+             List<String> names = new ArrayList<String>(sMap.keySet());
+             names.add("testMissingKey");
+             CMSettings.Secure.prefetch(mContentResolver, names);
+
+             // Reads after the prefetch see the stored values, missing keys included
+             for (Map.Entry<String, String> kVPair : sMap.entrySet()) {
+                 assertEquals(kVPair.getValue(),
+                         CMSettings.Secure.getString(mContentResolver, kVPair.getKey()));
+             }
+             assertNull(CMSettings.Secure.getString(mContentResolver, "testMissingKey"));
+
+             // Prefetched values don't outlive a write
+             assertTrue(CMSettings.Secure.putString(mContentResolver, "testKey1", "changed"));
+             assertEquals("changed", CMSettings.Secure.getString(mContentResolver, "testKey1"));
+         } finally {
+             for (String key : sMap.keySet()) {
+                 mContentResolver.delete(CMSettings.Secure.CONTENT_URI,
+                         Settings.NameValueTable.NAME + " = ?", new String[]{ key });
+             }
+         }
+     }
+
+     @MediumTest
+     public void testListChangesSinceVersion() {
+         final String key = "testChangedKey";
+         final long version = SystemProperties.getLong(
+                 CMSettings.Secure.SYS_PROP_CM_SETTING_VERSION, 0);
+
+         assertTrue(CMSettings.Secure.putString(mContentResolver, key, "value1"));
+
+         Bundle args = new Bundle();
+         args.putLong(CMSettings.CALL_METHOD_VERSION_KEY, version);
+         IContentProvider contentProvider = mContentResolver.acquireProvider(
+                 CMSettings.AUTHORITY);
+         try {
+             Bundle result = contentProvider.call(mContentResolver.getPackageName(),
+                     CMSettings.CALL_METHOD_LIST_CHANGES_SECURE, null, args);
+             assertNotNull(result);
+             List<String> names = result.getStringArrayList(CMSettings.CALL_METHOD_NAMES_KEY);
+             assertNotNull(names);
+             assertTrue(names.contains(key));
+         } catch (RemoteException ex) {
+             fail("Failed to list changed settings due to RemoteException");
+         } finally {
+             mContentResolver.delete(CMSettings.Secure.CONTENT_URI,
+                     Settings.NameValueTable.NAME + " = ?", new String[]{ key });
+         }
+     }
+
+     @MediumTest
+     public void testItemQueryMatchesLookup() {
+         // Both read paths fall back to the legacy value while the migration is pending, and
+         // read the table once it is done
+         for (String key : CMSettings.System.LEGACY_SYSTEM_SETTINGS) {
+             assertEquals(key, CMSettings.System.getString(mContentResolver, key),
+                     queryItemValue(CMSettings.System.CONTENT_URI, key));
+         }
+         for (String key : CMSettings.Secure.LEGACY_SECURE_SETTINGS) {
+             assertEquals(key, CMSettings.Secure.getString(mContentResolver, key),
+                     queryItemValue(CMSettings.Secure.CONTENT_URI, key));
+         }
+     }
+
+     private String queryItemValue(Uri uri, String key) {
+         Cursor queryCursor = mContentResolver.query(Uri.withAppendedPath(uri, key), PROJECTIONS,
+                 null, null, null);
+         try {
+             return queryCursor.moveToFirst() ? queryCursor.getString(1) : null;
+         } finally {
+             queryCursor.close();
+         }
+     }
+
      private void assertExpectedKeyValuePair(Cursor cursor, String expectedKey,
             String expectedValue) {
          cursor.moveToNext();
@@ -21,6 +21,7 @@ import android.media.AudioManager;
 import android.os.Parcel;
 import android.os.ParcelUuid;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.text.TextUtils;
@@ -41,6 +42,8 @@ import cyanogenmod.os.Concierge.ParcelInfo;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -77,6 +80,11 @@ public final class Profile implements Parcelable, Comparable {
 
     private static final String TAG = "Profile";
 
+    private static final boolean DEBUG = false;
+
+    // Version of the format written by writeToStream(), to be increased when fields are added
+    private static final int STREAM_VERSION = 1;
+
     private int mProfileType;
 
     private Map<Integer, StreamSettings> streams = new HashMap<Integer, StreamSettings>();
@@ -407,6 +415,21 @@ public final class Profile implements Parcelable, Comparable {
         return TriggerState.DISABLED;
     }
 
+    /**
+     * Get the {@link ProfileTrigger} of a given {@link TriggerType} and id
+     * @param type {@link TriggerType}
+     * @param id string id of {@link ProfileTrigger}
+     * @return the {@link ProfileTrigger}, or null if there is none
+     * @hide
+     */
+    public ProfileTrigger getTrigger(int type, String id) {
+        ProfileTrigger trigger = id != null ? mTriggers.get(id) : null;
+        if (trigger != null && trigger.mType == type) {
+            return trigger;
+        }
+        return null;
+    }
+
     /**
      * Get all the {@link ProfileTrigger}s for a given {@link TriggerType}
      * @param type {@link TriggerType}
@@ -1111,6 +1134,143 @@ public final class Profile implements Parcelable, Comparable {
         }
     }
 
+    /**
+     * Writes the profile to a binary stream, in a format that stays readable by later versions
+     * of this class. Unlike a parcel, it is suitable for persistent storage.
+     * @hide
+     */
+    public void writeToStream(DataOutputStream out, Context context) throws IOException {
+        out.writeInt(STREAM_VERSION);
+        writeString(out, mNameResId > 0
+                ? context.getResources().getResourceEntryName(mNameResId) : null);
+        writeString(out, mName);
+        out.writeLong(mUuid.getMostSignificantBits());
+        out.writeLong(mUuid.getLeastSignificantBits());
+        out.writeInt(mSecondaryUuids.size());
+        for (UUID u : mSecondaryUuids) {
+            out.writeLong(u.getMostSignificantBits());
+            out.writeLong(u.getLeastSignificantBits());
+        }
+        out.writeInt(mProfileType);
+        out.writeBoolean(mStatusBarIndicator);
+
+        out.writeInt(profileGroups.size());
+        for (ProfileGroup group : profileGroups.values()) {
+            group.writeToStream(out);
+        }
+        out.writeInt(streams.size());
+        for (StreamSettings sd : streams.values()) {
+            out.writeInt(sd.getStreamId());
+            out.writeInt(sd.getValue());
+            out.writeBoolean(sd.isOverride());
+        }
+        final Collection<ConnectionSettings> connectionSettings = getConnectionSettings();
+        out.writeInt(connectionSettings.size());
+        for (ConnectionSettings cs : connectionSettings) {
+            out.writeInt(cs.getConnectionId());
+            out.writeInt(cs.getValue());
+            out.writeBoolean(cs.isOverride());
+            out.writeInt(cs.getSubId());
+        }
+        writeString(out, mRingMode.getValue());
+        out.writeBoolean(mRingMode.isOverride());
+        out.writeInt(mAirplaneMode.getValue());
+        out.writeBoolean(mAirplaneMode.isOverride());
+        out.writeInt(mBrightness.getValue());
+        out.writeBoolean(mBrightness.isOverride());
+        out.writeInt(mScreenLockMode != null ? mScreenLockMode.getValue() : LockMode.DEFAULT);
+        out.writeInt(mExpandedDesktopMode);
+        out.writeInt(mDozeMode);
+        out.writeInt(mNotificationLightMode);
+
+        out.writeInt(mTriggers.size());
+        for (ProfileTrigger trigger : mTriggers.values()) {
+            out.writeInt(trigger.getType());
+            writeString(out, trigger.getId());
+            out.writeInt(trigger.getState());
+            writeString(out, trigger.getName());
+        }
+    }
+
+    /**
+     * Reads a profile written by {@link #writeToStream}.
+     * @hide
+     */
+    public static Profile fromStream(DataInputStream in, Context context) throws IOException {
+        final int version = in.readInt();
+        if (version < 1 || version > STREAM_VERSION) {
+            throw new IOException("Unsupported profile stream version " + version);
+        }
+
+        final String nameRes = readString(in);
+        String profileName = readString(in);
+        int profileNameResId = -1;
+        if (nameRes != null) {
+            profileNameResId = context.getResources().getIdentifier(nameRes, "string",
+                    "cyanogenmod.platform");
+            if (profileNameResId > 0) {
+                profileName = context.getResources().getString(profileNameResId);
+            }
+        }
+
+        final Profile profile = new Profile(profileName, profileNameResId,
+                new UUID(in.readLong(), in.readLong()));
+        for (int i = in.readInt(); i > 0; i--) {
+            profile.mSecondaryUuids.add(new UUID(in.readLong(), in.readLong()));
+        }
+        profile.mProfileType = in.readInt();
+        profile.mStatusBarIndicator = in.readBoolean();
+
+        for (int i = in.readInt(); i > 0; i--) {
+            profile.addProfileGroup(ProfileGroup.fromStream(in));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            StreamSettings sd = new StreamSettings(in.readInt(), in.readInt(), in.readBoolean());
+            profile.streams.put(sd.getStreamId(), sd);
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            ConnectionSettings cs = new ConnectionSettings(in.readInt(), in.readInt(),
+                    in.readBoolean());
+            final int subId = in.readInt();
+            if (cs.getConnectionId() == ConnectionSettings.PROFILE_CONNECTION_2G3G4G) {
+                cs.setSubId(subId);
+                profile.networkConnectionSubIds.put(subId, cs);
+            } else {
+                profile.connections.put(cs.getConnectionId(), cs);
+            }
+        }
+        profile.mRingMode = new RingModeSettings(readString(in), in.readBoolean());
+        profile.mAirplaneMode = new AirplaneModeSettings(in.readInt(), in.readBoolean());
+        profile.mBrightness = new BrightnessSettings(in.readInt(), in.readBoolean());
+        profile.mScreenLockMode = new LockSettings(in.readInt());
+        profile.mExpandedDesktopMode = in.readInt();
+        profile.mDozeMode = in.readInt();
+        profile.mNotificationLightMode = in.readInt();
+
+        for (int i = in.readInt(); i > 0; i--) {
+            ProfileTrigger trigger = new ProfileTrigger(in.readInt(), readString(in),
+                    in.readInt(), readString(in));
+            profile.mTriggers.put(trigger.mId, trigger);
+        }
+
+        /* we just loaded from the stream, no need to save */
+        profile.mDirty = false;
+
+        return profile;
+    }
+
+    // Strings of the binary stream format, which may be null
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
     /** @hide */
     public void validateRingtones(Context context) {
         for (ProfileGroup pg : profileGroups.values()) {
@@ -1230,36 +1390,61 @@ public final class Profile implements Parcelable, Comparable {
 
     /** @hide */
     public void doSelect(Context context, IKeyguardService keyguardService) {
-        // Set stream volumes
+        // Only overrides that differ from the current device state are applied
+        long start;
+
+        // Set stream volumes. Streams muted by the ring mode report a volume of 0, compare
+        // against the volume they get back when unmuted instead.
         AudioManager am = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
         for (StreamSettings sd : streams.values()) {
-            if (sd.isOverride()) {
+            if (sd.isOverride()
+                    && am.getLastAudibleStreamVolume(sd.getStreamId()) != sd.getValue()) {
+                start = SystemClock.elapsedRealtimeNanos();
                 am.setStreamVolume(sd.getStreamId(), sd.getValue(), 0);
+                logApplied("stream " + sd.getStreamId(), start);
             }
         }
         // Set connections
         for (ConnectionSettings cs : connections.values()) {
             if (cs.isOverride()) {
-                cs.processOverride(context);
+                start = SystemClock.elapsedRealtimeNanos();
+                if (cs.processOverride(context)) {
+                    logApplied("connection " + cs.getConnectionId(), start);
+                }
             }
         }
         for (ConnectionSettings cs : networkConnectionSubIds.values()) {
             if (cs.isOverride()) {
-                cs.processOverride(context);
+                start = SystemClock.elapsedRealtimeNanos();
+                if (cs.processOverride(context)) {
+                    logApplied("network mode for sub " + cs.getSubId(), start);
+                }
             }
         }
 
         // Set ring mode
-        mRingMode.processOverride(context);
+        start = SystemClock.elapsedRealtimeNanos();
+        if (mRingMode.processOverride(context)) {
+            logApplied("ring mode", start);
+        }
         // Set airplane mode
-        mAirplaneMode.processOverride(context);
+        start = SystemClock.elapsedRealtimeNanos();
+        if (mAirplaneMode.processOverride(context)) {
+            logApplied("airplane mode", start);
+        }
 
         // Set brightness
-        mBrightness.processOverride(context);
+        start = SystemClock.elapsedRealtimeNanos();
+        if (mBrightness.processOverride(context)) {
+            logApplied("brightness", start);
+        }
 
         if (keyguardService != null) {
             // Set lock screen mode
-            mScreenLockMode.processOverride(context, keyguardService);
+            start = SystemClock.elapsedRealtimeNanos();
+            if (mScreenLockMode.processOverride(context, keyguardService)) {
+                logApplied("lock screen mode", start);
+            }
         } else {
             Log.e(TAG, "cannot process screen lock override without a keyguard service.");
         }
@@ -1274,19 +1459,37 @@ public final class Profile implements Parcelable, Comparable {
 
         // Set doze mode
         if (mDozeMode != DozeMode.DEFAULT) {
-            Settings.Secure.putIntForUser(context.getContentResolver(),
-                Settings.Secure.DOZE_ENABLED,
-                    mDozeMode == DozeMode.ENABLE ? 1 : 0,
-                    UserHandle.USER_CURRENT);
+            final int dozeEnabled = mDozeMode == DozeMode.ENABLE ? 1 : 0;
+            if (Settings.Secure.getIntForUser(context.getContentResolver(),
+                    Settings.Secure.DOZE_ENABLED, -1, UserHandle.USER_CURRENT) != dozeEnabled) {
+                start = SystemClock.elapsedRealtimeNanos();
+                Settings.Secure.putIntForUser(context.getContentResolver(),
+                        Settings.Secure.DOZE_ENABLED, dozeEnabled, UserHandle.USER_CURRENT);
+                logApplied("doze mode", start);
+            }
         }
 
         // Set notification light mode
         if (mNotificationLightMode != NotificationLightMode.DEFAULT) {
-            Settings.System.putIntForUser(context.getContentResolver(),
-                Settings.System.NOTIFICATION_LIGHT_PULSE,
-                    mNotificationLightMode == NotificationLightMode.ENABLE ? 1 : 0,
-                    UserHandle.USER_CURRENT);
+            final int lightPulse = mNotificationLightMode == NotificationLightMode.ENABLE ? 1 : 0;
+            if (Settings.System.getIntForUser(context.getContentResolver(),
+                    Settings.System.NOTIFICATION_LIGHT_PULSE, -1, UserHandle.USER_CURRENT)
+                    != lightPulse) {
+                start = SystemClock.elapsedRealtimeNanos();
+                Settings.System.putIntForUser(context.getContentResolver(),
+                        Settings.System.NOTIFICATION_LIGHT_PULSE, lightPulse,
+                        UserHandle.USER_CURRENT);
+                logApplied("notification light mode", start);
+            }
+        }
+    }
+
+    private void logApplied(String override, long startNanos) {
+        if (!DEBUG) {
+            return;
         }
+        Log.d(TAG, mName + ": applied " + override + " in "
+                + (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000 + "us");
     }
 
     /**
@@ -34,6 +34,8 @@ import cyanogenmod.os.Build;
 import cyanogenmod.os.Concierge;
 import cyanogenmod.os.Concierge.ParcelInfo;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.UUID;
 
@@ -345,6 +347,55 @@ public final class ProfileGroup implements Parcelable {
         mDirty = false;
     }
 
+    /**
+     * Writes the group to a binary stream, as part of {@link Profile#writeToStream}.
+     * @hide
+     */
+    public void writeToStream(DataOutputStream out) throws IOException {
+        out.writeLong(mUuid.getMostSignificantBits());
+        out.writeLong(mUuid.getLeastSignificantBits());
+        Profile.writeString(out, mName);
+        out.writeBoolean(mDefaultGroup);
+        Profile.writeString(out, mSoundOverride != null ? mSoundOverride.toString() : null);
+        Profile.writeString(out, mRingerOverride != null ? mRingerOverride.toString() : null);
+        out.writeUTF(mSoundMode.name());
+        out.writeUTF(mRingerMode.name());
+        out.writeUTF(mVibrateMode.name());
+        out.writeUTF(mLightsMode.name());
+    }
+
+    /**
+     * Reads a group written by {@link #writeToStream}.
+     * @hide
+     */
+    public static ProfileGroup fromStream(DataInputStream in) throws IOException {
+        final UUID uuid = new UUID(in.readLong(), in.readLong());
+        final String name = Profile.readString(in);
+        ProfileGroup profileGroup = new ProfileGroup(name, uuid, in.readBoolean());
+
+        String value = Profile.readString(in);
+        if (value != null) {
+            profileGroup.mSoundOverride = Uri.parse(value);
+        }
+        value = Profile.readString(in);
+        if (value != null) {
+            profileGroup.mRingerOverride = Uri.parse(value);
+        }
+        try {
+            profileGroup.mSoundMode = Mode.valueOf(in.readUTF());
+            profileGroup.mRingerMode = Mode.valueOf(in.readUTF());
+            profileGroup.mVibrateMode = Mode.valueOf(in.readUTF());
+            profileGroup.mLightsMode = Mode.valueOf(in.readUTF());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown mode in profile group " + uuid, e);
+        }
+
+        /* we just loaded from the stream, no need to save */
+        profileGroup.mDirty = false;
+
+        return profileGroup;
+    }
+
     /** @hide */
     public static ProfileGroup fromXml(XmlPullParser xpp, Context context)
             throws XmlPullParserException, IOException {
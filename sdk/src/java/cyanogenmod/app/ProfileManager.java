@@ -16,6 +16,8 @@
 
 package cyanogenmod.app;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
 
 import android.annotation.SdkConstant;
@@ -68,6 +70,28 @@ public class ProfileManager {
 
     private static final String TAG = "ProfileManager";
 
+    private static final int GROUP_CACHE_SIZE = 32;
+
+    // Notification groups by package, kept until the service reports a change. Guarded by
+    // itself.
+    private final Map<String, NotificationGroup> mGroupCache =
+            new LinkedHashMap<String, NotificationGroup>(GROUP_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, NotificationGroup> eldest) {
+            return size() > GROUP_CACHE_SIZE;
+        }
+    };
+    private int mGroupCacheGeneration;
+    private boolean mGroupListenerRegistered;
+
+    private final INotificationGroupListener mGroupListener =
+            new INotificationGroupListener.Stub() {
+        @Override
+        public void onNotificationGroupsChanged() {
+            invalidateGroupCache();
+        }
+    };
+
     /**
      * <p>Broadcast Action: A new profile has been selected. This can be triggered by the user
      * or by calls to the ProfileManagerService / Profile.</p>
@@ -484,6 +508,8 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        // The service tells asynchronously; don't let the caller see its own change late
+        invalidateGroupCache();
     }
 
     /**
@@ -497,6 +523,8 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        // The service tells asynchronously; don't let the caller see its own change late
+        invalidateGroupCache();
     }
 
     /**
@@ -510,22 +538,67 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        // The service tells asynchronously; don't let the caller see its own change late
+        invalidateGroupCache();
     }
 
     /**
-     * Get a NotificationGroup for a specific package
+     * Get a NotificationGroup for a specific package. Results are cached until the
+     * notification groups change, so the returned group may be shared with other callers
+     * and must not be modified.
      * @param pkg name of the package
      * @hide
      */
     public NotificationGroup getNotificationGroupForPackage(String pkg) {
+        final int generation;
+        synchronized (mGroupCache) {
+            if (mGroupCache.containsKey(pkg)) {
+                return mGroupCache.get(pkg);
+            }
+            generation = mGroupCacheGeneration;
+        }
         try {
-            return getService().getNotificationGroupForPackage(pkg);
+            final IProfileManager service = getService();
+            final boolean cacheable = registerGroupListener(service);
+            final NotificationGroup group = service.getNotificationGroupForPackage(pkg);
+            synchronized (mGroupCache) {
+                // Skip caching if the groups changed while the service was asked
+                if (cacheable && generation == mGroupCacheGeneration) {
+                    mGroupCache.put(pkg, group);
+                }
+            }
+            return group;
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
         return null;
     }
 
+    /**
+     * Registers for changes of the notification groups, once.
+     * @return whether the listener is registered, without it results can't be cached
+     */
+    private boolean registerGroupListener(IProfileManager service) {
+        synchronized (mGroupCache) {
+            if (!mGroupListenerRegistered) {
+                try {
+                    service.registerNotificationGroupListener(mGroupListener);
+                    mGroupListenerRegistered = true;
+                } catch (RemoteException e) {
+                    Log.e(TAG, "Unable to register notification group listener", e);
+                }
+            }
+            return mGroupListenerRegistered;
+        }
+    }
+
+    private void invalidateGroupCache() {
+        synchronized (mGroupCache) {
+            mGroupCache.clear();
+            mGroupCacheGeneration++;
+        }
+    }
+
     /**
      * Get a NotificationGroup from the available list via {@link UUID}
      * @param uuid {@link UUID} of the notification group
@@ -566,6 +639,7 @@ public class ProfileManager {
         } catch (SecurityException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateGroupCache();
     }
 
     /**
@@ -137,8 +137,12 @@ public final class AirplaneModeSettings implements Parcelable {
         return mDirty;
     }
 
-    /** @hide */
-    public void processOverride(Context context) {
+    /**
+     * Applies the airplane mode, unless the device is already in it.
+     * @return whether the airplane mode was changed
+     * @hide
+     */
+    public boolean processOverride(Context context) {
         if (isOverride()) {
             int current = Settings.Global.getInt(context.getContentResolver(),
                     Settings.Global.AIRPLANE_MODE_ON, 0);
@@ -148,8 +152,10 @@ public final class AirplaneModeSettings implements Parcelable {
                 Intent intent = new Intent(Intent.ACTION_AIRPLANE_MODE_CHANGED);
                 intent.putExtra("state", mValue == 1);
                 context.sendBroadcast(intent);
+                return true;
             }
         }
+        return false;
     }
 
     /** @hide */
@@ -126,8 +126,12 @@ public final class BrightnessSettings implements Parcelable {
         return mDirty;
     }
 
-    /** @hide */
-    public void processOverride(Context context) {
+    /**
+     * Applies the brightness, unless the screen already has it.
+     * @return whether the brightness was changed
+     * @hide
+     */
+    public boolean processOverride(Context context) {
         if (isOverride()) {
             final boolean automatic = Settings.System.getInt(context.getContentResolver(),
                     Settings.System.SCREEN_BRIGHTNESS_MODE,
@@ -141,6 +145,7 @@ public final class BrightnessSettings implements Parcelable {
                 if (current != adj) {
                     Settings.System.putFloat(context.getContentResolver(),
                             Settings.System.SCREEN_AUTO_BRIGHTNESS_ADJ, adj);
+                    return true;
                 }
             } else {
                 final int current = Settings.System.getInt(context.getContentResolver(),
@@ -148,9 +153,11 @@ public final class BrightnessSettings implements Parcelable {
                 if (current != mValue) {
                     Settings.System.putInt(context.getContentResolver(),
                             Settings.System.SCREEN_BRIGHTNESS, mValue);
+                    return true;
                 }
             }
         }
+        return false;
     }
 
     /** @hide */
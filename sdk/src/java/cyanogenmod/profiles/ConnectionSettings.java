@@ -248,8 +248,12 @@ public final class ConnectionSettings implements Parcelable {
         return mDirty;
     }
 
-    /** @hide */
-    public void processOverride(Context context) {
+    /**
+     * Applies the connection state, unless the connection is already in it.
+     * @return whether the connection state was changed
+     * @hide
+     */
+    public boolean processOverride(Context context) {
         BluetoothAdapter bta = BluetoothAdapter.getDefaultAdapter();
         LocationManager lm = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
         WifiManager wm = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
@@ -266,6 +270,7 @@ public final class ConnectionSettings implements Parcelable {
 
         boolean forcedState = getValue() == 1;
         boolean currentState;
+        boolean changed = false;
 
         switch (getConnectionId()) {
             case PROFILE_CONNECTION_MOBILEDATA:
@@ -278,6 +283,7 @@ public final class ConnectionSettings implements Parcelable {
                         int[] subId = SubscriptionManager.getSubId(i);
                         tm.setDataEnabled(subId[0], forcedState);
                     }
+                    changed = true;
                 }
                 break;
             case PROFILE_CONNECTION_2G3G4G:
@@ -286,6 +292,7 @@ public final class ConnectionSettings implements Parcelable {
                     intent.putExtra(EXTRA_NETWORK_MODE, getValue());
                     intent.putExtra(EXTRA_SUB_ID, getSubId());
                     context.sendBroadcast(intent, "com.android.phone.CHANGE_NETWORK_MODE");
+                    changed = true;
                 } else {
                     Intent intent = new Intent(ACTION_MODIFY_NETWORK_MODE);
                     switch(getValue()) {
@@ -306,9 +313,10 @@ public final class ConnectionSettings implements Parcelable {
                                     RILConstants.NETWORK_MODE_LTE_GSM_WCDMA);
                             break;
                         default:
-                            return;
+                            return false;
                     }
                     context.sendBroadcast(intent);
+                    changed = true;
                 }
                 break;
             case PROFILE_CONNECTION_BLUETOOTH:
@@ -316,9 +324,11 @@ public final class ConnectionSettings implements Parcelable {
                 if (forcedState && (btstate == BluetoothAdapter.STATE_OFF
                         || btstate == BluetoothAdapter.STATE_TURNING_OFF)) {
                     bta.enable();
+                    changed = true;
                 } else if (!forcedState && (btstate == BluetoothAdapter.STATE_ON
                         || btstate == BluetoothAdapter.STATE_TURNING_ON)) {
                     bta.disable();
+                    changed = true;
                 }
                 break;
             case PROFILE_CONNECTION_GPS:
@@ -326,12 +336,14 @@ public final class ConnectionSettings implements Parcelable {
                 if (currentState != forcedState) {
                     Settings.Secure.setLocationProviderEnabled(context.getContentResolver(),
                             LocationManager.GPS_PROVIDER, forcedState);
+                    changed = true;
                 }
                 break;
             case PROFILE_CONNECTION_SYNC:
                 currentState = ContentResolver.getMasterSyncAutomatically();
                 if (forcedState != currentState) {
                     ContentResolver.setMasterSyncAutomatically(forcedState);
+                    changed = true;
                 }
                 break;
             case PROFILE_CONNECTION_WIFI:
@@ -344,6 +356,7 @@ public final class ConnectionSettings implements Parcelable {
                         cm.stopTethering(ConnectivityManager.TETHERING_WIFI);
                     }
                     wm.setWifiEnabled(forcedState);
+                    changed = true;
                 }
                 break;
             case PROFILE_CONNECTION_WIFIAP:
@@ -356,6 +369,7 @@ public final class ConnectionSettings implements Parcelable {
                     } else {
                         cm.stopTethering(ConnectivityManager.TETHERING_WIFI);
                     }
+                    changed = true;
                 }
                 break;
             case PROFILE_CONNECTION_NFC:
@@ -369,10 +383,12 @@ public final class ConnectionSettings implements Parcelable {
                         } else if (!forcedState && adapterState != NfcAdapter.STATE_TURNING_OFF) {
                             nfcAdapter.disable();
                         }
+                        changed = true;
                     }
                 }
                 break;
         }
+        return changed;
     }
 
     /** @hide */
@@ -108,8 +108,13 @@ public final class LockSettings implements Parcelable {
         return mDirty;
     }
 
-    /** @hide */
-    public void processOverride(Context context, IKeyguardService keyguard) {
+    /**
+     * Applies the lock screen mode. The keyguard's current state can't be queried, so it is
+     * always applied.
+     * @return whether the lock screen mode was applied
+     * @hide
+     */
+    public boolean processOverride(Context context, IKeyguardService keyguard) {
         boolean enable;
         final DevicePolicyManager devicePolicyManager =
                 (DevicePolicyManager) context.getSystemService(Context.DEVICE_POLICY_SERVICE);
@@ -130,8 +135,10 @@ public final class LockSettings implements Parcelable {
 
         try {
             keyguard.setKeyguardEnabled(enable);
+            return true;
         } catch (RemoteException e) {
             Log.w(TAG, "unable to set keyguard enabled state to: " + enable, e);
+            return false;
         }
     }
 
@@ -128,8 +128,12 @@ public final class RingModeSettings implements Parcelable {
         return mDirty;
     }
 
-    /** @hide */
-    public void processOverride(Context context) {
+    /**
+     * Applies the ring mode, unless the device is already in it.
+     * @return whether the ring mode was changed
+     * @hide
+     */
+    public boolean processOverride(Context context) {
         if (isOverride()) {
             int ringerMode = AudioManager.RINGER_MODE_NORMAL;
             if (mValue.equals(RING_MODE_MUTE)) {
@@ -138,8 +142,12 @@ public final class RingModeSettings implements Parcelable {
                 ringerMode = AudioManager.RINGER_MODE_VIBRATE;
             }
             AudioManager amgr = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
-            amgr.setRingerModeInternal(ringerMode);
+            if (amgr.getRingerModeInternal() != ringerMode) {
+                amgr.setRingerModeInternal(ringerMode);
+                return true;
+            }
         }
+        return false;
     }
 
     /** @hide */
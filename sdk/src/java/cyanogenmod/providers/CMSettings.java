@@ -37,7 +37,6 @@ import android.util.Log;
 import com.android.internal.util.ArrayUtils;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -116,6 +115,39 @@ public final class CMSettings {
      */
     public static final String CALL_METHOD_PUT_GLOBAL= "PUT_global";
 
+    /**
+     * @hide - Private call() method on CMSettingsProvider to read several keys from 'system'
+     * table.
+     */
+    public static final String CALL_METHOD_GET_SYSTEM_BATCH = "GET_BATCH_system";
+
+    /**
+     * @hide - Private call() method on CMSettingsProvider to read several keys from 'secure'
+     * table.
+     */
+    public static final String CALL_METHOD_GET_SECURE_BATCH = "GET_BATCH_secure";
+
+    /**
+     * @hide - Private call() method on CMSettingsProvider to read several keys from 'global'
+     * table.
+     */
+    public static final String CALL_METHOD_GET_GLOBAL_BATCH = "GET_BATCH_global";
+
+    /**
+     * @hide - Private call() method to write several keys to 'system' table
+     */
+    public static final String CALL_METHOD_PUT_SYSTEM_BATCH = "PUT_BATCH_system";
+
+    /**
+     * @hide - Private call() method to write several keys to 'secure' table
+     */
+    public static final String CALL_METHOD_PUT_SECURE_BATCH = "PUT_BATCH_secure";
+
+    /**
+     * @hide - Private call() method to write several keys to 'global' table
+     */
+    public static final String CALL_METHOD_PUT_GLOBAL_BATCH = "PUT_BATCH_global";
+
     /**
      * @hide - Private call() method on CMSettingsProvider to migrate CM settings
      */
@@ -126,6 +158,39 @@ public final class CMSettings {
      */
     public static final String CALL_METHOD_MIGRATE_SETTINGS_FOR_USER = "migrate_settings_for_user";
 
+    /**
+     * @hide - Version argument extra to the list changes call()-based requests
+     */
+    public static final String CALL_METHOD_VERSION_KEY = "_version";
+
+    /**
+     * @hide - Names result extra of the list changes call()-based requests
+     */
+    public static final String CALL_METHOD_NAMES_KEY = "_names";
+
+    /**
+     * @hide - Values extra of the batch call()-based requests, in the order of the names extra
+     */
+    public static final String CALL_METHOD_VALUES_KEY = "_values";
+
+    /**
+     * @hide - Private call() method on CMSettingsProvider to list the 'system' keys changed
+     * since a given table version.
+     */
+    public static final String CALL_METHOD_LIST_CHANGES_SYSTEM = "LIST_CHANGES_system";
+
+    /**
+     * @hide - Private call() method on CMSettingsProvider to list the 'secure' keys changed
+     * since a given table version.
+     */
+    public static final String CALL_METHOD_LIST_CHANGES_SECURE = "LIST_CHANGES_secure";
+
+    /**
+     * @hide - Private call() method on CMSettingsProvider to list the 'global' keys changed
+     * since a given table version.
+     */
+    public static final String CALL_METHOD_LIST_CHANGES_GLOBAL = "LIST_CHANGES_global";
+
     // endregion
 
     // Thread-safe.
@@ -141,6 +206,12 @@ public final class CMSettings {
         private final HashMap<String, String> mValues = new HashMap<String, String>();
         private long mValuesVersion = 0;
 
+        // Typed forms of the cached values, so repeated typed reads don't parse again.
+        // An entry is only used while its string is the very instance cached in mValues.
+        // Synchronized on 'this'.
+        private final HashMap<String, DecodedValue> mDecodedValues =
+                new HashMap<String, DecodedValue>();
+
         // Initially null; set lazily and held forever.  Synchronized on 'this'.
         private IContentProvider mContentProvider = null;
 
@@ -148,13 +219,23 @@ public final class CMSettings {
         // for the fast path of retrieving settings.
         private final String mCallGetCommand;
         private final String mCallSetCommand;
+        // The methods used to read or write several keys in a single call.
+        private final String mCallGetBatchCommand;
+        private final String mCallSetBatchCommand;
+        // The method used to learn which keys changed between two table versions, so that
+        // a version bump only evicts the affected entries instead of the whole cache.
+        private final String mCallListChangesCommand;
 
         public NameValueCache(String versionSystemProperty, Uri uri,
-                String getCommand, String setCommand) {
+                String getCommand, String setCommand, String getBatchCommand,
+                String setBatchCommand, String listChangesCommand) {
             mVersionSystemProperty = versionSystemProperty;
             mUri = uri;
             mCallGetCommand = getCommand;
             mCallSetCommand = setCommand;
+            mCallGetBatchCommand = getBatchCommand;
+            mCallSetBatchCommand = setBatchCommand;
+            mCallListChangesCommand = listChangesCommand;
         }
 
         private IContentProvider lazyGetProvider(ContentResolver cr) {
@@ -204,20 +285,11 @@ public final class CMSettings {
             final boolean isSelf = (userId == UserHandle.myUserId());
             if (isSelf) {
                 if (LOCAL_LOGV) Log.d(TAG, "get setting for self");
-                long newValuesVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
 
                 // Our own user's settings data uses a client-side cache
-                synchronized (this) {
-                    if (mValuesVersion != newValuesVersion) {
-                        if (LOCAL_LOGV || false) {
-                            Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: current "
-                                    + newValuesVersion + " != cached " + mValuesVersion);
-                        }
-
-                        mValues.clear();
-                        mValuesVersion = newValuesVersion;
-                    }
+                updateValuesVersion(cr);
 
+                synchronized (this) {
                     if (mValues.containsKey(name)) {
                         return mValues.get(name);  // Could be null, that's OK -- negative caching
                     }
@@ -288,6 +360,381 @@ public final class CMSettings {
                 if (c != null) c.close();
             }
         }
+
+        /**
+         * Puts several string name/value pairs into the content provider for the specified user
+         * in a single call.
+         * @param cr The content resolver to use.
+         * @param values The names and values to put into the content provider.
+         * @param userId The user id to use for the content provider.
+         * @return Whether the put was successful.
+         */
+        public boolean putStringsForUser(ContentResolver cr, Map<String, String> values,
+                final int userId) {
+            try {
+                Bundle arg = new Bundle();
+                arg.putStringArrayList(CALL_METHOD_NAMES_KEY,
+                        new ArrayList<String>(values.keySet()));
+                arg.putStringArrayList(CALL_METHOD_VALUES_KEY,
+                        new ArrayList<String>(values.values()));
+                arg.putInt(CALL_METHOD_USER_KEY, userId);
+                IContentProvider cp = lazyGetProvider(cr);
+                cp.call(cr.getPackageName(), mCallSetBatchCommand, null, arg);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't set keys " + values.keySet() + " in " + mUri, e);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Gets several string values from the name/value cache if possible. The values missing
+         * from the cache are fetched from the content provider in a single call.
+         * @param cr Content resolver to use if name/value cache does not contain all the names or
+         *           if the cache version is older than the current version.
+         * @param names The names of the keys to search for.
+         * @param userId The user id of the cache to look in.
+         * @return The string values of the specified keys, keyed by name.
+         */
+        public Map<String, String> getStringsForUser(ContentResolver cr, List<String> names,
+                final int userId) {
+            final ArrayMap<String, String> values = new ArrayMap<String, String>(names.size());
+            final ArrayList<String> missing = new ArrayList<String>(names.size());
+
+            final boolean isSelf = (userId == UserHandle.myUserId());
+            if (isSelf) {
+                updateValuesVersion(cr);
+
+                synchronized (this) {
+                    for (String name : names) {
+                        if (mValues.containsKey(name)) {
+                            values.put(name, mValues.get(name));
+                        } else {
+                            missing.add(name);
+                        }
+                    }
+                }
+            } else {
+                missing.addAll(names);
+            }
+
+            if (missing.isEmpty()) {
+                return values;
+            }
+
+            if (mCallGetBatchCommand != null) {
+                try {
+                    Bundle args = new Bundle();
+                    args.putStringArrayList(CALL_METHOD_NAMES_KEY, missing);
+                    if (!isSelf) {
+                        args.putInt(CALL_METHOD_USER_KEY, userId);
+                    }
+                    IContentProvider cp = lazyGetProvider(cr);
+                    Bundle b = cp.call(cr.getPackageName(), mCallGetBatchCommand, null, args);
+                    final List<String> fetchedNames = b != null
+                            ? b.getStringArrayList(CALL_METHOD_NAMES_KEY) : null;
+                    final List<String> fetchedValues = b != null
+                            ? b.getStringArrayList(CALL_METHOD_VALUES_KEY) : null;
+                    if (fetchedNames != null && fetchedValues != null
+                            && fetchedNames.size() == fetchedValues.size()) {
+                        for (int i = 0; i < fetchedNames.size(); i++) {
+                            values.put(fetchedNames.get(i), fetchedValues.get(i));
+                        }
+                        // Don't update our cache for reads of other users' data
+                        if (isSelf) {
+                            synchronized (this) {
+                                for (int i = 0; i < fetchedNames.size(); i++) {
+                                    mValues.put(fetchedNames.get(i), fetchedValues.get(i));
+                                }
+                            }
+                        }
+                        return values;
+                    }
+                    // If the response is not usable, we fall through to
+                    // reading the keys one by one below.
+                } catch (RemoteException e) {
+                    // Not supported by the remote side?  Fall through
+                    // to single reads.
+                }
+            }
+
+            for (String name : missing) {
+                values.put(name, getStringForUser(cr, name, userId));
+            }
+            return values;
+        }
+
+        /**
+         * Parses a value read through this cache as an int. For our own user the result is
+         * cached next to the string, so reading the same value again doesn't parse it again.
+         * @param name The name of the key the value was read for.
+         * @param value The value as returned by {@link #getStringForUser}.
+         * @param def The value to return if the value is null or not a valid int.
+         * @param userId The user id the value was read for.
+         */
+        public int getInt(String name, String value, int def, int userId) {
+            if (value == null) {
+                return def;
+            }
+            if (userId != UserHandle.myUserId()) {
+                try {
+                    return Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    return def;
+                }
+            }
+            final DecodedValue decoded = getDecodedValue(name, value);
+            return decoded.isInt() ? decoded.mInt : def;
+        }
+
+        /**
+         * Same as {@link #getInt(String, String, int, int)}, but throws instead of
+         * returning a default value.
+         */
+        public int getInt(String name, String value, int userId)
+                throws CMSettingNotFoundException {
+            if (value != null) {
+                if (userId != UserHandle.myUserId()) {
+                    try {
+                        return Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        throw new CMSettingNotFoundException(name);
+                    }
+                }
+                final DecodedValue decoded = getDecodedValue(name, value);
+                if (decoded.isInt()) {
+                    return decoded.mInt;
+                }
+            }
+            throw new CMSettingNotFoundException(name);
+        }
+
+        /**
+         * Parses a value read through this cache as a long, see
+         * {@link #getInt(String, String, int, int)}.
+         */
+        public long getLong(String name, String value, long def, int userId) {
+            if (value == null) {
+                return def;
+            }
+            if (userId != UserHandle.myUserId()) {
+                try {
+                    return Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    return def;
+                }
+            }
+            final DecodedValue decoded = getDecodedValue(name, value);
+            return decoded.isLong() ? decoded.mLong : def;
+        }
+
+        /**
+         * Same as {@link #getLong(String, String, long, int)}, but throws instead of
+         * returning a default value.
+         */
+        public long getLong(String name, String value, int userId)
+                throws CMSettingNotFoundException {
+            if (value != null) {
+                if (userId != UserHandle.myUserId()) {
+                    try {
+                        return Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new CMSettingNotFoundException(name);
+                    }
+                }
+                final DecodedValue decoded = getDecodedValue(name, value);
+                if (decoded.isLong()) {
+                    return decoded.mLong;
+                }
+            }
+            throw new CMSettingNotFoundException(name);
+        }
+
+        /**
+         * Parses a value read through this cache as a float, see
+         * {@link #getInt(String, String, int, int)}.
+         */
+        public float getFloat(String name, String value, float def, int userId) {
+            if (value == null) {
+                return def;
+            }
+            if (userId != UserHandle.myUserId()) {
+                try {
+                    return Float.parseFloat(value);
+                } catch (NumberFormatException e) {
+                    return def;
+                }
+            }
+            final DecodedValue decoded = getDecodedValue(name, value);
+            return decoded.isFloat() ? decoded.mFloat : def;
+        }
+
+        /**
+         * Same as {@link #getFloat(String, String, float, int)}, but throws instead of
+         * returning a default value.
+         */
+        public float getFloat(String name, String value, int userId)
+                throws CMSettingNotFoundException {
+            if (value != null) {
+                if (userId != UserHandle.myUserId()) {
+                    try {
+                        return Float.parseFloat(value);
+                    } catch (NumberFormatException e) {
+                        throw new CMSettingNotFoundException(name);
+                    }
+                }
+                final DecodedValue decoded = getDecodedValue(name, value);
+                if (decoded.isFloat()) {
+                    return decoded.mFloat;
+                }
+            }
+            throw new CMSettingNotFoundException(name);
+        }
+
+        private DecodedValue getDecodedValue(String name, String value) {
+            synchronized (this) {
+                DecodedValue decoded = mDecodedValues.get(name);
+                if (decoded == null || decoded.mString != value) {
+                    decoded = new DecodedValue(value);
+                    mDecodedValues.put(name, decoded);
+                }
+                return decoded;
+            }
+        }
+
+        /**
+         * Compares the cached version with the current table version and evicts the stale
+         * values if the table has changed since the cache was filled.
+         * @param cr Content resolver to use to ask the provider for the changed keys.
+         */
+        private void updateValuesVersion(ContentResolver cr) {
+            long newValuesVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
+            long cachedValuesVersion;
+            synchronized (this) {
+                cachedValuesVersion = mValuesVersion;
+            }
+            if (cachedValuesVersion != newValuesVersion) {
+                invalidateStaleValues(cr, cachedValuesVersion, newValuesVersion);
+            }
+        }
+
+        /**
+         * Brings the cache from the cached version to the current version. Only the keys the
+         * provider reports as changed in between are evicted; the whole cache is dropped if the
+         * provider can no longer tell which keys changed.
+         * @param cr Content resolver to use to ask the provider for the changed keys.
+         * @param cachedVersion The table version the cached values were read at.
+         * @param newVersion The current table version.
+         */
+        private void invalidateStaleValues(ContentResolver cr, long cachedVersion,
+                long newVersion) {
+            boolean isEmpty;
+            synchronized (this) {
+                isEmpty = mValues.isEmpty();
+            }
+
+            List<String> changedNames = null;
+            if (!isEmpty && cachedVersion != 0 && newVersion > cachedVersion
+                    && mCallListChangesCommand != null) {
+                try {
+                    Bundle args = new Bundle();
+                    args.putLong(CALL_METHOD_VERSION_KEY, cachedVersion);
+                    IContentProvider cp = lazyGetProvider(cr);
+                    Bundle b = cp.call(cr.getPackageName(), mCallListChangesCommand, null, args);
+                    if (b != null) {
+                        changedNames = b.getStringArrayList(CALL_METHOD_NAMES_KEY);
+                    }
+                } catch (RemoteException e) {
+                    // Fall through and drop everything
+                }
+            }
+
+            synchronized (this) {
+                if (mValuesVersion != cachedVersion) {
+                    // Another thread already brought the cache up to date
+                    return;
+                }
+
+                if (changedNames == null) {
+                    if (LOCAL_LOGV) {
+                        Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: current "
+                                + newVersion + " != cached " + cachedVersion);
+                    }
+                    mValues.clear();
+                    mDecodedValues.clear();
+                } else {
+                    if (LOCAL_LOGV) {
+                        Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: "
+                                + changedNames);
+                    }
+                    for (String changedName : changedNames) {
+                        mValues.remove(changedName);
+                        mDecodedValues.remove(changedName);
+                    }
+                }
+                mValuesVersion = newVersion;
+            }
+        }
+    }
+
+    /**
+     * The int, long and float forms of a setting value. Each form is only parsed when it is
+     * first asked for, and then kept.
+     */
+    private static final class DecodedValue {
+        private static final int UNPARSED = 0;
+        private static final int VALID = 1;
+        private static final int INVALID = 2;
+
+        final String mString;
+
+        // Each value is written once, under the lock, before its state is set to VALID
+        private int mIntState = UNPARSED;
+        int mInt;
+        private int mLongState = UNPARSED;
+        long mLong;
+        private int mFloatState = UNPARSED;
+        float mFloat;
+
+        DecodedValue(String value) {
+            mString = value;
+        }
+
+        synchronized boolean isInt() {
+            if (mIntState == UNPARSED) {
+                try {
+                    mInt = Integer.parseInt(mString);
+                    mIntState = VALID;
+                } catch (NumberFormatException e) {
+                    mIntState = INVALID;
+                }
+            }
+            return mIntState == VALID;
+        }
+
+        synchronized boolean isLong() {
+            if (mLongState == UNPARSED) {
+                try {
+                    mLong = Long.parseLong(mString);
+                    mLongState = VALID;
+                } catch (NumberFormatException e) {
+                    mLongState = INVALID;
+                }
+            }
+            return mLongState == VALID;
+        }
+
+        synchronized boolean isFloat() {
+            if (mFloatState == UNPARSED) {
+                try {
+                    mFloat = Float.parseFloat(mString);
+                    mFloatState = VALID;
+                } catch (NumberFormatException e) {
+                    mFloatState = INVALID;
+                }
+            }
+            return mFloatState == VALID;
+        }
     }
 
     // region Validators
@@ -387,38 +834,47 @@ public final class CMSettings {
     }
 
     private static final class DelimitedListValidator implements Validator {
-        private final ArraySet<String> mValidValueSet;
+        private final String[] mValidValues;
         private final String mDelimiter;
         private final boolean mAllowEmptyList;
 
         public DelimitedListValidator(String[] validValues, String delimiter,
                                       boolean allowEmptyList) {
-            mValidValueSet = new ArraySet<String>(Arrays.asList(validValues));
+            mValidValues = validValues;
             mDelimiter = delimiter;
             mAllowEmptyList = allowEmptyList;
         }
 
         @Override
         public boolean validate(String value) {
-            ArraySet<String> values = new ArraySet<String>();
+            // Walk the items in place rather than splitting, so validation doesn't allocate
+            boolean hasItems = false;
             if (!TextUtils.isEmpty(value)) {
-                final String[] array = TextUtils.split(value, Pattern.quote(mDelimiter));
-                for (String item : array) {
-                    if (TextUtils.isEmpty(item)) {
-                        continue;
+                int start = 0;
+                while (start <= value.length()) {
+                    int end = value.indexOf(mDelimiter, start);
+                    if (end < 0) {
+                        end = value.length();
+                    }
+                    if (end > start) {
+                        if (!isValidItem(value, start, end - start)) {
+                            return false;
+                        }
+                        hasItems = true;
                     }
-                    values.add(item);
+                    start = end + mDelimiter.length();
                 }
             }
-            if (values.size() > 0) {
-                values.removeAll(mValidValueSet);
-                // values.size() will be non-zero if it contains any values not in
-                // mValidValueSet
-                return values.size() == 0;
-            } else if (mAllowEmptyList) {
-                return true;
-            }
+            return hasItems || mAllowEmptyList;
+        }
 
+        private boolean isValidItem(String value, int start, int length) {
+            for (String validValue : mValidValues) {
+                if (validValue.length() == length
+                        && value.regionMatches(start, validValue, 0, length)) {
+                    return true;
+                }
+            }
             return false;
         }
     }
@@ -437,7 +893,10 @@ public final class CMSettings {
                 SYS_PROP_CM_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_SYSTEM,
-                CALL_METHOD_PUT_SYSTEM);
+                CALL_METHOD_PUT_SYSTEM,
+                CALL_METHOD_GET_SYSTEM_BATCH,
+                CALL_METHOD_PUT_SYSTEM_BATCH,
+                CALL_METHOD_LIST_CHANGES_SYSTEM);
 
         /** @hide */
         protected static final ArraySet<String> MOVED_TO_SECURE;
@@ -539,6 +998,72 @@ public final class CMSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Look up several names in the database in a single call.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @param userId to look up the names for
+         * @return the corresponding values keyed by name, null for names that are not present
+         * @hide
+         */
+        public static Map<String, String> getStringsForUser(ContentResolver resolver,
+                List<String> names, int userId) {
+            List<String> batchNames = names;
+            List<String> movedNames = null;
+            for (String name : names) {
+                if (MOVED_TO_SECURE.contains(name)) {
+                    if (movedNames == null) {
+                        movedNames = new ArrayList<String>();
+                        batchNames = new ArrayList<String>(names);
+                    }
+                    movedNames.add(name);
+                    batchNames.remove(name);
+                }
+            }
+            Map<String, String> values = sNameValueCache.getStringsForUser(resolver, batchNames,
+                    userId);
+            if (movedNames != null) {
+                for (String name : movedNames) {
+                    values.put(name, getStringForUser(resolver, name, userId));
+                }
+            }
+            return values;
+        }
+
+        /**
+         * Fetch several names in a single call and keep them in the client-side cache, so
+         * reading them afterwards doesn't go to the database one by one. Meant to be called
+         * from {@link android.app.Application#onCreate} with the keys the application reads
+         * while starting up.
+         * @param resolver to access the database with
+         * @param names to fetch from the table
+         * @hide
+         */
+        public static void prefetch(ContentResolver resolver, List<String> names) {
+            getStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /**
+         * Store several name/value pairs into the database in a single call.
+         * @param resolver to access the database with
+         * @param values to store, keyed by name
+         * @param userId to store the values for
+         * @return true if the values were set, false on database errors or if any of the names
+         * has moved to another table
+         * @hide
+         */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userId) {
+            for (String name : values.keySet()) {
+                if (MOVED_TO_SECURE.contains(name)) {
+                    Log.w(TAG, "Setting " + name + " has moved from CMSettings.System"
+                            + " to CMSettings.Secure, values are unchanged.");
+                    return false;
+                }
+            }
+            return sNameValueCache.putStringsForUser(resolver, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -560,11 +1085,7 @@ public final class CMSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
             String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return sNameValueCache.getInt(name, v, def, userId);
         }
 
         /**
@@ -594,11 +1115,7 @@ public final class CMSettings {
         public static int getIntForUser(ContentResolver cr, String name, int userId)
                 throws CMSettingNotFoundException {
             String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
-                throw new CMSettingNotFoundException(name);
-            }
+            return sNameValueCache.getInt(name, v, userId);
         }
 
         /**
@@ -646,13 +1163,7 @@ public final class CMSettings {
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userId) {
             String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            return sNameValueCache.getLong(name, valString, def, userId);
         }
 
         /**
@@ -681,11 +1192,7 @@ public final class CMSettings {
         public static long getLongForUser(ContentResolver cr, String name, int userId)
                 throws CMSettingNotFoundException {
             String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
-                throw new CMSettingNotFoundException(name);
-            }
+            return sNameValueCache.getLong(name, valString, userId);
         }
 
         /**
@@ -733,11 +1240,7 @@ public final class CMSettings {
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userId) {
             String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return sNameValueCache.getFloat(name, v, def, userId);
         }
 
         /**
@@ -767,14 +1270,7 @@ public final class CMSettings {
         public static float getFloatForUser(ContentResolver cr, String name, int userId)
                 throws CMSettingNotFoundException {
             String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new CMSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
-                throw new CMSettingNotFoundException(name);
-            }
+            return sNameValueCache.getFloat(name, v, userId);
         }
 
         /**
@@ -2057,7 +2553,7 @@ public final class CMSettings {
          * @hide
          */
         public static final Map<String, Validator> VALIDATORS =
-                new ArrayMap<String, Validator>();
+                new HashMap<String, Validator>();
         static {
             VALIDATORS.put(NOTIFICATION_PLAY_QUEUE, NOTIFICATION_PLAY_QUEUE_VALIDATOR);
             VALIDATORS.put(HIGH_TOUCH_SENSITIVITY_ENABLE,
@@ -2212,7 +2708,10 @@ public final class CMSettings {
                 SYS_PROP_CM_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_SECURE,
-                CALL_METHOD_PUT_SECURE);
+                CALL_METHOD_PUT_SECURE,
+                CALL_METHOD_GET_SECURE_BATCH,
+                CALL_METHOD_PUT_SECURE_BATCH,
+                CALL_METHOD_LIST_CHANGES_SECURE);
 
         /** @hide */
         protected static final ArraySet<String> MOVED_TO_GLOBAL;
@@ -2314,6 +2813,72 @@ public final class CMSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Look up several names in the database in a single call.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @param userId to look up the names for
+         * @return the corresponding values keyed by name, null for names that are not present
+         * @hide
+         */
+        public static Map<String, String> getStringsForUser(ContentResolver resolver,
+                List<String> names, int userId) {
+            List<String> batchNames = names;
+            List<String> movedNames = null;
+            for (String name : names) {
+                if (MOVED_TO_GLOBAL.contains(name)) {
+                    if (movedNames == null) {
+                        movedNames = new ArrayList<String>();
+                        batchNames = new ArrayList<String>(names);
+                    }
+                    movedNames.add(name);
+                    batchNames.remove(name);
+                }
+            }
+            Map<String, String> values = sNameValueCache.getStringsForUser(resolver, batchNames,
+                    userId);
+            if (movedNames != null) {
+                for (String name : movedNames) {
+                    values.put(name, getStringForUser(resolver, name, userId));
+                }
+            }
+            return values;
+        }
+
+        /**
+         * Fetch several names in a single call and keep them in the client-side cache, so
+         * reading them afterwards doesn't go to the database one by one. Meant to be called
+         * from {@link android.app.Application#onCreate} with the keys the application reads
+         * while starting up.
+         * @param resolver to access the database with
+         * @param names to fetch from the table
+         * @hide
+         */
+        public static void prefetch(ContentResolver resolver, List<String> names) {
+            getStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /**
+         * Store several name/value pairs into the database in a single call.
+         * @param resolver to access the database with
+         * @param values to store, keyed by name
+         * @param userId to store the values for
+         * @return true if the values were set, false on database errors or if any of the names
+         * has moved to another table
+         * @hide
+         */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userId) {
+            for (String name : values.keySet()) {
+                if (MOVED_TO_GLOBAL.contains(name)) {
+                    Log.w(TAG, "Setting " + name + " has moved from CMSettings.Secure"
+                            + " to CMSettings.Global, values are unchanged.");
+                    return false;
+                }
+            }
+            return sNameValueCache.putStringsForUser(resolver, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -2335,11 +2900,7 @@ public final class CMSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
             String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return sNameValueCache.getInt(name, v, def, userId);
         }
 
         /**
@@ -2369,11 +2930,7 @@ public final class CMSettings {
         public static int getIntForUser(ContentResolver cr, String name, int userId)
                 throws CMSettingNotFoundException {
             String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
-                throw new CMSettingNotFoundException(name);
-            }
+            return sNameValueCache.getInt(name, v, userId);
         }
 
         /**
@@ -2421,13 +2978,7 @@ public final class CMSettings {
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userId) {
             String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            return sNameValueCache.getLong(name, valString, def, userId);
         }
 
         /**
@@ -2456,11 +3007,7 @@ public final class CMSettings {
         public static long getLongForUser(ContentResolver cr, String name, int userId)
                 throws CMSettingNotFoundException {
             String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
-                throw new CMSettingNotFoundException(name);
-            }
+            return sNameValueCache.getLong(name, valString, userId);
         }
 
         /**
@@ -2508,11 +3055,7 @@ public final class CMSettings {
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userId) {
             String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return sNameValueCache.getFloat(name, v, def, userId);
         }
 
         /**
@@ -2542,14 +3085,7 @@ public final class CMSettings {
         public static float getFloatForUser(ContentResolver cr, String name, int userId)
                 throws CMSettingNotFoundException {
             String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new CMSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
-                throw new CMSettingNotFoundException(name);
-            }
+            return sNameValueCache.getFloat(name, v, userId);
         }
 
         /**
@@ -3081,7 +3617,7 @@ public final class CMSettings {
          * @hide
          */
         public static final Map<String, Validator> VALIDATORS =
-                new ArrayMap<String, Validator>();
+                new HashMap<String, Validator>();
         static {
             VALIDATORS.put(PROTECTED_COMPONENTS, PROTECTED_COMPONENTS_VALIDATOR);
             VALIDATORS.put(PROTECTED_COMPONENT_MANAGERS, PROTECTED_COMPONENTS_MANAGER_VALIDATOR);
@@ -3121,7 +3657,10 @@ public final class CMSettings {
                 SYS_PROP_CM_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_GLOBAL,
-                CALL_METHOD_PUT_GLOBAL);
+                CALL_METHOD_PUT_GLOBAL,
+                CALL_METHOD_GET_GLOBAL_BATCH,
+                CALL_METHOD_PUT_GLOBAL_BATCH,
+                CALL_METHOD_LIST_CHANGES_GLOBAL);
 
         // region Methods
 
@@ -3207,6 +3746,45 @@ public final class CMSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Look up several names in the database in a single call.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @param userId to look up the names for
+         * @return the corresponding values keyed by name, null for names that are not present
+         * @hide
+         */
+        public static Map<String, String> getStringsForUser(ContentResolver resolver,
+                List<String> names, int userId) {
+            return sNameValueCache.getStringsForUser(resolver, names, userId);
+        }
+
+        /**
+         * Fetch several names in a single call and keep them in the client-side cache, so
+         * reading them afterwards doesn't go to the database one by one. Meant to be called
+         * from {@link android.app.Application#onCreate} with the keys the application reads
+         * while starting up.
+         * @param resolver to access the database with
+         * @param names to fetch from the table
+         * @hide
+         */
+        public static void prefetch(ContentResolver resolver, List<String> names) {
+            getStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /**
+         * Store several name/value pairs into the database in a single call.
+         * @param resolver to access the database with
+         * @param values to store, keyed by name
+         * @param userId to store the values for
+         * @return true if the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userId) {
+            return sNameValueCache.putStringsForUser(resolver, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -3228,11 +3806,7 @@ public final class CMSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
             String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return sNameValueCache.getInt(name, v, def, userId);
         }
 
         /**
@@ -3262,11 +3836,7 @@ public final class CMSettings {
         public static int getIntForUser(ContentResolver cr, String name, int userId)
                 throws CMSettingNotFoundException {
             String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
-                throw new CMSettingNotFoundException(name);
-            }
+            return sNameValueCache.getInt(name, v, userId);
         }
 
         /**
@@ -3314,13 +3884,7 @@ public final class CMSettings {
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userId) {
             String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            return sNameValueCache.getLong(name, valString, def, userId);
         }
 
         /**
@@ -3349,11 +3913,7 @@ public final class CMSettings {
         public static long getLongForUser(ContentResolver cr, String name, int userId)
                 throws CMSettingNotFoundException {
             String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
-                throw new CMSettingNotFoundException(name);
-            }
+            return sNameValueCache.getLong(name, valString, userId);
         }
 
         /**
@@ -3401,11 +3961,7 @@ public final class CMSettings {
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userId) {
             String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return sNameValueCache.getFloat(name, v, def, userId);
         }
 
         /**
@@ -3435,14 +3991,7 @@ public final class CMSettings {
         public static float getFloatForUser(ContentResolver cr, String name, int userId)
                 throws CMSettingNotFoundException {
             String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new CMSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
-                throw new CMSettingNotFoundException(name);
-            }
+            return sNameValueCache.getFloat(name, v, userId);
         }
 
         /**
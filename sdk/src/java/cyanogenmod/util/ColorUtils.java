@@ -316,11 +316,26 @@ public class ColorUtils {
      * @return array of floats representing rgb values 0->1
      */
     public static float[] temperatureToRGB(int degreesK) {
+        return temperatureToRGB(degreesK, new float[3]);
+    }
+
+    /**
+     * Convert a color temperature value (in Kelvin) to a RGB units as floats,
+     * without allocating. Use this when converting repeatedly, e.g. while animating.
+     *
+     * @param degreesK
+     * @param out array of at least three floats receiving the rgb values 0->1
+     * @return out
+     */
+    public static float[] temperatureToRGB(int degreesK, float[] out) {
         int k = MathUtils.constrain(degreesK, 1000, 20000);
         float a = (k % 100) / 100.0f;
         int i = ((k - 1000)/ 100) * 3;
 
-        return new float[] { interp(i, a), interp(i+1, a), interp(i+2, a) };
+        out[0] = interp(i, a);
+        out[1] = interp(i+1, a);
+        out[2] = interp(i+2, a);
+        return out;
     }
 
     private static float interp(int i, float a) {
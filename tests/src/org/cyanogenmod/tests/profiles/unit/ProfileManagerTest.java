@@ -16,6 +16,7 @@
 
 package org.cyanogenmod.tests.profiles.unit;
 
+import android.app.NotificationGroup;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -222,4 +223,24 @@ public class ProfileManagerTest extends AndroidTestCase {
         assertEquals(expectedProfileName, expectedProfile.getName());
         mProfileManager.resetAll();
     }
+
+    @SmallTest
+    public void testGetNotificationGroupForPackage() {
+        final String pkg = "org.cyanogenmod.tests.grouped";
+        NotificationGroup group = new NotificationGroup("GROUP 1");
+        mProfileManager.addNotificationGroup(group);
+        assertNull(mProfileManager.getNotificationGroupForPackage(pkg));
+
+        // The cached result has to be dropped once the group changes
+        group.addPackage(pkg);
+        mProfileManager.updateNotificationGroup(group);
+        NotificationGroup actualGroup = mProfileManager.getNotificationGroupForPackage(pkg);
+        assertNotNull(actualGroup);
+        assertEquals(group.getUuid(), actualGroup.getUuid());
+        assertSame(actualGroup, mProfileManager.getNotificationGroupForPackage(pkg));
+
+        mProfileManager.removeNotificationGroup(group);
+        assertNull(mProfileManager.getNotificationGroupForPackage(pkg));
+        mProfileManager.resetAll();
+    }
 }
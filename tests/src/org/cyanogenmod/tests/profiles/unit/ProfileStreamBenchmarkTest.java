@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2018, The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cyanogenmod.tests.profiles.unit;
+
+import android.media.AudioManager;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import cyanogenmod.app.CMContextConstants;
+import cyanogenmod.app.Profile;
+import cyanogenmod.profiles.ConnectionSettings;
+import cyanogenmod.profiles.StreamSettings;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares decoding a large set of profiles with {@link Profile#fromXml} and with
+ * {@link Profile#fromStream}. Only the profile encodings are measured, not the profile store
+ * itself or its notification group records. The timings are logged under the {@link #TAG} tag.
+ */
+public class ProfileStreamBenchmarkTest extends AndroidTestCase {
+    private static final String TAG = "ProfileStreamBenchmarkTest";
+
+    private static final int PROFILE_COUNT = 128;
+    private static final int ITERATIONS = 5;
+
+    private final List<Profile> mProfiles = new ArrayList<Profile>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Only run this if we support profiles service
+        org.junit.Assume.assumeTrue(mContext.getPackageManager().hasSystemFeature(
+                CMContextConstants.Features.PROFILES));
+
+        for (int i = 0; i < PROFILE_COUNT; i++) {
+            Profile profile = new Profile("Profile " + i);
+            profile.setStreamSettings(new StreamSettings(AudioManager.STREAM_RING, i % 7, true));
+            profile.setConnectionSettings(new ConnectionSettings(
+                    ConnectionSettings.PROFILE_CONNECTION_WIFI, i % 2, true));
+            profile.setTrigger(Profile.TriggerType.WIFI, "ssid" + i,
+                    Profile.TriggerState.ON_CONNECT, "Network " + i);
+            mProfiles.add(profile);
+        }
+    }
+
+    @LargeTest
+    public void testFromXmlVersusFromStream() throws Exception {
+        final String xml = toXml();
+        final byte[][] streams = toStreams();
+
+        long xmlNanos = Long.MAX_VALUE;
+        long streamNanos = Long.MAX_VALUE;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            assertEquals(PROFILE_COUNT, loadXml(xml));
+            xmlNanos = Math.min(xmlNanos, SystemClock.elapsedRealtimeNanos() - start);
+
+            start = SystemClock.elapsedRealtimeNanos();
+            assertEquals(PROFILE_COUNT, loadStreams(streams));
+            streamNanos = Math.min(streamNanos, SystemClock.elapsedRealtimeNanos() - start);
+        }
+
+        int streamBytes = 0;
+        for (byte[] stream : streams) {
+            streamBytes += stream.length;
+        }
+        Log.i(TAG, "profiles=" + PROFILE_COUNT
+                + " xml bytes=" + xml.length() + " load us=" + xmlNanos / 1000
+                + " stream bytes=" + streamBytes + " load us=" + streamNanos / 1000);
+    }
+
+    private String toXml() {
+        StringBuilder builder = new StringBuilder("<profiles>\n");
+        for (Profile profile : mProfiles) {
+            profile.getXmlString(builder, mContext);
+        }
+        builder.append("</profiles>\n");
+        return builder.toString();
+    }
+
+    private int loadXml(String xml) throws Exception {
+        XmlPullParser xpp = XmlPullParserFactory.newInstance().newPullParser();
+        xpp.setInput(new StringReader(xml));
+
+        int count = 0;
+        int event = xpp.next();
+        while (event != XmlPullParser.END_TAG || !"profiles".equals(xpp.getName())) {
+            if (event == XmlPullParser.START_TAG && "profile".equals(xpp.getName())) {
+                assertNotNull(Profile.fromXml(xpp, mContext));
+                count++;
+            }
+            event = xpp.next();
+        }
+        return count;
+    }
+
+    private byte[][] toStreams() throws Exception {
+        final byte[][] streams = new byte[mProfiles.size()][];
+        for (int i = 0; i < streams.length; i++) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            mProfiles.get(i).writeToStream(out, mContext);
+            out.flush();
+            streams[i] = bytes.toByteArray();
+        }
+        return streams;
+    }
+
+    private int loadStreams(byte[][] streams) throws Exception {
+        for (byte[] stream : streams) {
+            assertNotNull(Profile.fromStream(new DataInputStream(
+                    new ByteArrayInputStream(stream)), mContext));
+        }
+        return streams.length;
+    }
+}
@@ -32,6 +32,10 @@ import cyanogenmod.profiles.LockSettings;
 import cyanogenmod.profiles.RingModeSettings;
 import cyanogenmod.profiles.StreamSettings;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -495,6 +499,23 @@ public class ProfileTest extends AndroidTestCase {
                         EXPECTED_PROFILE_TRIGGER_ID));
     }
 
+    @SmallTest
+    public void testProfileGetTrigger() {
+        Profile profile = new Profile("ProfileTrigger Profile");
+        Profile.ProfileTrigger profileTrigger = createSampleProfileTrigger();
+        profile.setTrigger(profileTrigger);
+
+        Profile.ProfileTrigger actualProfileTrigger = profile.getTrigger(
+                EXPECTED_PROFILE_TRIGGER_TYPE, EXPECTED_PROFILE_TRIGGER_ID);
+        assertNotNull(actualProfileTrigger);
+        assertEquals(EXPECTED_PROFILE_TRIGGER_STATE, actualProfileTrigger.getState());
+
+        int otherType = EXPECTED_PROFILE_TRIGGER_TYPE == Profile.TriggerType.WIFI
+                ? Profile.TriggerType.BLUETOOTH : Profile.TriggerType.WIFI;
+        assertNull(profile.getTrigger(otherType, EXPECTED_PROFILE_TRIGGER_ID));
+        assertNull(profile.getTrigger(EXPECTED_PROFILE_TRIGGER_TYPE, null));
+    }
+
     @SmallTest
     public void testProfileGetTriggersFromType() {
         Profile profile = new Profile("ProfileTrigger Profile");
@@ -520,6 +541,45 @@ public class ProfileTest extends AndroidTestCase {
         }
     }
 
+    @MediumTest
+    public void testProfileUnravelFromStream() throws Exception {
+        Profile profile = new Profile("Stream Profile");
+        profile.setProfileType(Profile.Type.CONDITIONAL);
+        profile.setStatusBarIndicator(true);
+        profile.setConnectionSettings(new ConnectionSettings(
+                ConnectionSettings.PROFILE_CONNECTION_GPS,
+                ConnectionSettings.BooleanState.STATE_DISALED, true));
+        profile.setStreamSettings(new StreamSettings(AudioManager.STREAM_RING, 3, true));
+        profile.setRingMode(new RingModeSettings(RingModeSettings.RING_MODE_MUTE, true));
+        profile.setScreenLockMode(new LockSettings(Profile.LockMode.INSECURE));
+        profile.setTrigger(createSampleProfileTrigger());
+
+        // Write to stream
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        profile.writeToStream(out, mContext);
+        out.flush();
+
+        // Verify data when reading back
+        Profile fromStream = Profile.fromStream(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())), mContext);
+
+        assertNotNull(fromStream);
+        assertEquals(profile.getName(), fromStream.getName());
+        assertEquals(profile.getUuid(), fromStream.getUuid());
+        assertTrue(fromStream.isConditionalType());
+        assertTrue(fromStream.getStatusBarIndicator());
+        assertEquals(ConnectionSettings.BooleanState.STATE_DISALED,
+                fromStream.getSettingsForConnection(
+                        ConnectionSettings.PROFILE_CONNECTION_GPS).getValue());
+        assertEquals(3, fromStream.getSettingsForStream(AudioManager.STREAM_RING).getValue());
+        assertEquals(RingModeSettings.RING_MODE_MUTE, fromStream.getRingMode().getValue());
+        assertEquals(Profile.LockMode.INSECURE, fromStream.getScreenLockMode().getValue());
+        assertEquals(profile.getTriggersFromType(EXPECTED_PROFILE_TRIGGER_TYPE).size(),
+                fromStream.getTriggersFromType(EXPECTED_PROFILE_TRIGGER_TYPE).size());
+        assertFalse(fromStream.isDirty());
+    }
+
     @SmallTest
     public void testProfileIsConditionalType() {
         Profile profile = new Profile("Mutable Profile");
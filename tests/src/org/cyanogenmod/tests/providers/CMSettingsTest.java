@@ -24,6 +24,7 @@ import android.os.UserHandle;
 import android.provider.Settings;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
 import cyanogenmod.providers.CMSettings;
 
 public class CMSettingsTest extends AndroidTestCase{
@@ -159,6 +160,44 @@ public class CMSettingsTest extends AndroidTestCase{
         }
     }
 
+    @MediumTest
+    public void testTypedGlobalValuesFollowUpdates() {
+        final String key = "key";
+
+        assertTrue(CMSettings.Global.putInt(mContentResolver, key, 1));
+        assertEquals(1, CMSettings.Global.getInt(mContentResolver, key, -1));
+        assertEquals(1L, CMSettings.Global.getLong(mContentResolver, key, -1L));
+        assertEquals(1f, CMSettings.Global.getFloat(mContentResolver, key, -1f));
+
+        // repeated typed reads of the cached value
+        assertEquals(1, CMSettings.Global.getInt(mContentResolver, key, -1));
+
+        assertTrue(CMSettings.Global.putString(mContentResolver, key, "1.5"));
+        assertEquals(-1, CMSettings.Global.getInt(mContentResolver, key, -1));
+        assertEquals(1.5f, CMSettings.Global.getFloat(mContentResolver, key, -1f));
+
+        assertTrue(CMSettings.Global.putInt(mContentResolver, key, 2));
+        assertEquals(2, CMSettings.Global.getInt(mContentResolver, key, -1));
+
+        // delete to clean up
+        int rowsAffected = mContentResolver.delete(CMSettings.Global.CONTENT_URI,
+                Settings.NameValueTable.NAME + " = ?", new String[]{ key });
+        assertEquals(1, rowsAffected);
+    }
+
+    @SmallTest
+    public void testDelimitedListValidator() {
+        final CMSettings.Validator validator = CMSettings.System.NAV_BUTTONS_VALIDATOR;
+
+        assertTrue(validator.validate("home|back|recent"));
+        assertTrue(validator.validate("|home||back|"));
+        assertTrue(validator.validate(""));
+        assertTrue(validator.validate(null));
+        assertFalse(validator.validate("home|bogus"));
+        assertFalse(validator.validate("hom|back"));
+        assertFalse(validator.validate("homes"));
+    }
+
     private class CMSettingsTestObserver extends ContentObserver {
 
         public CMSettingsTestObserver(Handler handler) {
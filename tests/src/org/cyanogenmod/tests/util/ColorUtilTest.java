@@ -120,4 +120,34 @@ public class ColorUtilTest extends AndroidTestCase {
         }).when(colorDrawable).draw(Mockito.any(Canvas.class));
         return colorDrawable;
     }
+
+    public void testTemperatureToRGBInto() {
+        final float[] out = new float[3];
+
+        // Clamped to the lowest and highest temperatures of the table
+        assertRGB(out, 500, 1.0f, 0.18172716f, 0.0f);
+        assertRGB(out, 1000, 1.0f, 0.18172716f, 0.0f);
+        assertRGB(out, 20000, 0.64994941f, 0.76876866f, 1.0f);
+        assertRGB(out, 25000, 0.64994941f, 0.76876866f, 1.0f);
+
+        // An entry of the table
+        assertRGB(out, 2000, 1.0f, 0.54360078f, 0.08679949f);
+
+        // 37% of the way from the 6500K entry to the 6600K one
+        assertRGB(out, 6537, 0.99610724f, 0.99759028f, 1.0f);
+
+        // The allocating overload returns the same values in a new array
+        final float[] rgb = ColorUtils.temperatureToRGB(6537);
+        assertNotSame(out, rgb);
+        assertEquals(0.99610724f, rgb[0], 1e-6f);
+        assertEquals(0.99759028f, rgb[1], 1e-6f);
+        assertEquals(1.0f, rgb[2], 1e-6f);
+    }
+
+    private static void assertRGB(float[] out, int degreesK, float r, float g, float b) {
+        assertSame(out, ColorUtils.temperatureToRGB(degreesK, out));
+        assertEquals(r, out[0], 1e-6f);
+        assertEquals(g, out[1], 1e-6f);
+        assertEquals(b, out[2], 1e-6f);
+    }
 }